@@ -0,0 +1,217 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.MessageSeverityCode;
+import com.perforce.p4java.server.callback.ICommandCallback;
+
+/**
+ * Limits the number of blame fetches running at once, between one and the configured number of blame threads, from
+ * what the server reports about the commands sent to it (additive increase, multiplicative decrease).
+ * <p>
+ * Each kind of command has its own baseline, the latency of an idle server: the fastest command of the kind seen so
+ * far, which moves up towards the fastest of each window of {@link #WINDOW_SAMPLES} commands, so that a server
+ * lastingly slower does not look overloaded forever. A command taking more than {@link #LATENCY_TOLERANCE} times its
+ * baseline, a communication error, or an error or warning about resource limits or lock contention lowers the limit
+ * by a quarter. Other errors, like a file missing from the depot, say nothing of the load of the server. After as
+ * many good commands as the current limit, the limit is raised by one. Once lowered, the limit is not lowered again
+ * before {@link #COOLDOWN_SAMPLES} commands have completed, so that a single slow period is not counted several times
+ * by the fetches that were already running.
+ */
+class AdaptiveConcurrencyLimiter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+  static final int LATENCY_TOLERANCE = 2;
+  static final double DECREASE_FACTOR = 0.75;
+  static final int COOLDOWN_SAMPLES = 8;
+  /** Commands faster than this are never considered slow, whatever the baseline. */
+  static final long MIN_SLOW_MILLIS = 50;
+  static final int WINDOW_SAMPLES = 32;
+  /** Weight of the fastest command of the last window in the baseline. */
+  static final double BASELINE_WEIGHT = 0.25;
+
+  private static final Pattern OVERLOAD_MESSAGE = Pattern.compile(
+    "MaxScanRows|MaxResults|MaxLockTime|too many|timed? ?out|locked|busy", Pattern.CASE_INSENSITIVE);
+
+  private final int maxLimit;
+  private final Map<String, Baseline> baselines = new HashMap<String, Baseline>();
+  private int limit;
+  private int inFlight;
+  private int goodSamples;
+  private int cooldown;
+  private int decreases;
+  private int lowestLimit;
+
+  AdaptiveConcurrencyLimiter(int maxLimit) {
+    this.maxLimit = Math.max(1, maxLimit);
+    this.limit = (this.maxLimit + 1) / 2;
+    this.lowestLimit = limit;
+  }
+
+  /**
+   * Wait until a fetch may start.
+   */
+  synchronized void acquire() throws InterruptedException {
+    while (inFlight >= limit) {
+      wait();
+    }
+    inFlight++;
+  }
+
+  synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  @VisibleForTesting
+  synchronized int limit() {
+    return limit;
+  }
+
+  /**
+   * Listener of the commands of one connection. Callback keys are only unique within a connection.
+   */
+  ICommandCallback forConnection() {
+    return new ConnectionListener();
+  }
+
+  synchronized void completed(String command, long millis) {
+    if (cooldown > 0) {
+      cooldown--;
+    }
+    Baseline baseline = baselines.get(command);
+    if (baseline == null) {
+      baseline = new Baseline();
+      baselines.put(command, baseline);
+    }
+    baseline.add(millis);
+    if (millis > MIN_SLOW_MILLIS && millis > LATENCY_TOLERANCE * baseline.millis) {
+      decrease(command + " took " + millis + "ms, baseline is " + (long) baseline.millis + "ms");
+      return;
+    }
+    goodSamples++;
+    if (goodSamples >= limit && limit < maxLimit) {
+      goodSamples = 0;
+      limit++;
+      LOG.debug("Perforce blame concurrency raised to " + limit);
+      notifyAll();
+    }
+  }
+
+  void serverMessage(int genericCode, int severityCode, @Nullable String message) {
+    if (isOverload(genericCode, severityCode, message)) {
+      synchronized (this) {
+        decrease("server reported: " + message);
+      }
+    }
+  }
+
+  /**
+   * Whether a message of the server is about its load or the connection to it, rather than about the command.
+   */
+  static boolean isOverload(int genericCode, int severityCode, @Nullable String message) {
+    if (severityCode < MessageSeverityCode.E_WARN) {
+      return false;
+    }
+    return genericCode == MessageGenericCode.EV_COMM || genericCode == MessageGenericCode.EV_TOOBIG
+      || (message != null && OVERLOAD_MESSAGE.matcher(message).find());
+  }
+
+  private void decrease(String reason) {
+    goodSamples = 0;
+    if (cooldown > 0 || limit == 1) {
+      return;
+    }
+    cooldown = COOLDOWN_SAMPLES;
+    limit = Math.max(1, (int) (limit * DECREASE_FACTOR));
+    lowestLimit = Math.min(lowestLimit, limit);
+    decreases++;
+    LOG.debug("Perforce blame concurrency lowered to " + limit + ": " + reason);
+  }
+
+  synchronized void logSummary() {
+    LOG.info("Perforce blame concurrency: " + limit + " of " + maxLimit + " at the end, lowest " + lowestLimit + ", "
+      + decreases + " back-offs");
+  }
+
+  /**
+   * Latency of a kind of command on an idle server.
+   */
+  private static class Baseline {
+    private double millis = Double.MAX_VALUE;
+    private long windowMin = Long.MAX_VALUE;
+    private int windowSamples;
+
+    void add(long sample) {
+      millis = Math.min(millis, sample);
+      windowMin = Math.min(windowMin, sample);
+      windowSamples++;
+      if (windowSamples == WINDOW_SAMPLES) {
+        millis += BASELINE_WEIGHT * (windowMin - millis);
+        windowMin = Long.MAX_VALUE;
+        windowSamples = 0;
+      }
+    }
+  }
+
+  private class ConnectionListener implements ICommandCallback {
+    private final Map<Integer, String> commands = new ConcurrentHashMap<Integer, String>();
+
+    @Override
+    public void issuingServerCommand(int key, String command) {
+      int space = command.indexOf(' ');
+      commands.put(key, space > 0 ? command.substring(0, space) : command);
+    }
+
+    @Override
+    public void completedServerCommand(int key, long millisecsTaken) {
+      String command = commands.remove(key);
+      completed(command != null ? command : "", millisecsTaken);
+    }
+
+    @Override
+    public void receivedServerMessage(int key, int genericCode, int severityCode, String message) {
+      serverMessage(genericCode, severityCode, message);
+    }
+
+    @Override
+    public void receivedServerInfoLine(int key, String infoLine) {
+      // Not used
+    }
+
+    @Override
+    public void receivedServerErrorLine(int key, String errorLine) {
+      // Not used
+    }
+  }
+}
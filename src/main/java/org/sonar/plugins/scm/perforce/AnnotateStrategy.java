@@ -0,0 +1,154 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IRevisionIntegrationData;
+import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
+
+/**
+ * Chooses the annotate options of each file from its history. Following branches (<code>annotate -i</code>) is the
+ * most expensive annotate on the server, and gives the same result as a plain annotate for files whose history has no
+ * contributing integration. Since the history is fetched with <code>filelog -i -s</code>, any branch, move or
+ * integration it contains contributes to the content of the file. A history truncated to the maximum number of
+ * revisions fetched may hide such an integration, so branches are followed for it.
+ * <p>
+ * Also measures the annotates of each kind to estimate the time saved.
+ */
+class AnnotateStrategy {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AnnotateStrategy.class);
+
+  private final AtomicLong followedFiles = new AtomicLong();
+  private final AtomicLong followedNanos = new AtomicLong();
+  private final AtomicLong plainFiles = new AtomicLong();
+  private final AtomicLong plainNanos = new AtomicLong();
+
+  /**
+   * @param requested options of the annotate
+   * @param histories history of the file, one list per file when it inherits from other files
+   * @return the requested options, or the same options without branch following when the history shows no
+   *         contributing integration
+   */
+  GetFileAnnotationsOptions options(GetFileAnnotationsOptions requested, Collection<List<IFileRevisionData>> histories) {
+    if (!canAnnotatePlainly(requested) || histories.size() != 1
+      || hasContributingIntegrations(histories.iterator().next())) {
+      return requested;
+    }
+    return withoutBranches(requested);
+  }
+
+  /**
+   * @return whether the options follow branches, which a plain annotate may replace
+   */
+  static boolean canAnnotatePlainly(GetFileAnnotationsOptions requested) {
+    return requested.isFollowBranches() && !requested.isFollowAllIntegrations();
+  }
+
+  /**
+   * @return the same options without branch following
+   */
+  static GetFileAnnotationsOptions withoutBranches(GetFileAnnotationsOptions requested) {
+    GetFileAnnotationsOptions options = new GetFileAnnotationsOptions();
+    options.setUseChangeNumbers(requested.isUseChangeNumbers());
+    options.setIgnoreWhitespaceChanges(requested.isIgnoreWhitespaceChanges());
+    options.setIgnoreLineEndings(requested.isIgnoreLineEndings());
+    options.setIgnoreWhitespace(requested.isIgnoreWhitespace());
+    options.setAllResults(requested.isAllResults());
+    return options;
+  }
+
+  /**
+   * @return <code>false</code> only if all the revisions are known to be plain adds, edits or deletes
+   */
+  static boolean hasContributingIntegrations(List<IFileRevisionData> history) {
+    if (history == null || history.isEmpty() || history.size() >= PerforceBlameCommand.MAX_HISTORY_REVISIONS) {
+      return true;
+    }
+    for (IFileRevisionData revision : history) {
+      FileAction action = revision.getAction();
+      if (action != FileAction.ADD && action != FileAction.EDIT && action != FileAction.DELETE) {
+        return true;
+      }
+      List<IRevisionIntegrationData> integrations = revision.getRevisionIntegrationData();
+      if (integrations == null) {
+        continue;
+      }
+      for (IRevisionIntegrationData integration : integrations) {
+        if (isContributing(integration.getHowFrom())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isContributing(String howFrom) {
+    // "branch from", "copy from", "merge from", "edit from", "add from", "moved from"...
+    return howFrom == null || (howFrom.endsWith(" from") && !howFrom.startsWith("delete"));
+  }
+
+  void record(GetFileAnnotationsOptions options, long nanos) {
+    if (options.isFollowBranches()) {
+      followedFiles.incrementAndGet();
+      followedNanos.addAndGet(nanos);
+    } else {
+      plainFiles.incrementAndGet();
+      plainNanos.addAndGet(nanos);
+    }
+  }
+
+  long followedFiles() {
+    return followedFiles.get();
+  }
+
+  long plainFiles() {
+    return plainFiles.get();
+  }
+
+  /**
+   * @return plain annotates times the difference of mean duration with annotates following branches, 0 when unknown
+   */
+  long savedMillis() {
+    long followed = followedFiles.get();
+    long plain = plainFiles.get();
+    if (followed == 0 || plain == 0) {
+      return 0;
+    }
+    long savedNanos = plain * (followedNanos.get() / followed - plainNanos.get() / plain);
+    return Math.max(0, savedNanos / 1000000);
+  }
+
+  void logSummary() {
+    if (followedFiles.get() + plainFiles.get() == 0) {
+      return;
+    }
+    LOG.info("Annotated " + followedFiles.get() + " files following branches and " + plainFiles.get()
+      + " files without integration plainly, about " + savedMillis() + " ms saved");
+  }
+}
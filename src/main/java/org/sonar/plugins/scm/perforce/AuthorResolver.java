@@ -0,0 +1,178 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.perforce.p4java.core.IUserSummary;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.option.server.GetUsersOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Translates Perforce user names found in blame into the identities SonarQube knows: an explicit mapping first, then
+ * the email of the Perforce user if requested.
+ * <p>
+ * Emails of all users are loaded with a single <code>users</code> command per analysis, and kept in the
+ * {@link StateDirectory} for a day so that following analyses do not need it at all.
+ */
+class AuthorResolver {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AuthorResolver.class);
+
+  static final String USERS_FILENAME = "perforce-users.properties";
+  static final long USERS_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  /**
+   * Where emails of Perforce users are loaded from when they are not in the state directory.
+   */
+  interface EmailSource {
+    Map<String, String> emails() throws P4JavaException;
+  }
+
+  private final Map<String, String> mapping;
+  private final Map<String, String> emails;
+
+  AuthorResolver(Map<String, String> mapping, Map<String, String> emails) {
+    this.mapping = mapping;
+    this.emails = emails;
+  }
+
+  /**
+   * @return the resolver, or <code>null</code> if Perforce user names are used as is
+   */
+  @CheckForNull
+  static AuthorResolver create(PerforceConfiguration config, IOptionsServer server, @Nullable File stateDir)
+    throws P4JavaException {
+    return create(config, () -> fetchEmails(server), stateDir);
+  }
+
+  /**
+   * @return the resolver, or <code>null</code> if Perforce user names are used as is
+   */
+  @CheckForNull
+  static AuthorResolver create(PerforceConfiguration config, EmailSource emailSource, @Nullable File stateDir)
+    throws P4JavaException {
+    Map<String, String> mapping = new HashMap<String, String>();
+    String mappingPath = config.blameAuthorMapping();
+    if (mappingPath != null) {
+      Properties props = read(new File(mappingPath));
+      if (props == null) {
+        throw new IllegalStateException("Unable to read author mapping " + mappingPath);
+      }
+      for (String user : props.stringPropertyNames()) {
+        mapping.put(user, props.getProperty(user));
+      }
+    }
+    boolean useEmails = PerforceConfiguration.AUTHOR_FORMAT_EMAIL.equals(config.blameAuthorFormat());
+    if (mapping.isEmpty() && !useEmails) {
+      return null;
+    }
+    Map<String, String> emails = useEmails ? loadEmails(emailSource, stateDir) : new HashMap<String, String>();
+    return new AuthorResolver(mapping, emails);
+  }
+
+  String resolve(@Nullable String user) {
+    if (user == null) {
+      return null;
+    }
+    String mapped = mapping.get(user);
+    if (mapped != null) {
+      return mapped;
+    }
+    String email = emails.get(user);
+    return email != null ? email : user;
+  }
+
+  private static Map<String, String> loadEmails(EmailSource emailSource, @Nullable File stateDir)
+    throws P4JavaException {
+    File cacheFile = stateDir != null ? new File(stateDir, USERS_FILENAME) : null;
+    if (cacheFile != null && System.currentTimeMillis() - cacheFile.lastModified() < USERS_TTL_MILLIS) {
+      Properties props = read(cacheFile);
+      if (props != null) {
+        Map<String, String> emails = new HashMap<String, String>();
+        for (String user : props.stringPropertyNames()) {
+          emails.put(user, props.getProperty(user));
+        }
+        LOG.debug("Loaded " + emails.size() + " Perforce users from " + cacheFile);
+        return emails;
+      }
+    }
+
+    Map<String, String> emails = emailSource.emails();
+    LOG.debug("Loaded " + emails.size() + " Perforce users");
+    if (cacheFile != null) {
+      Properties props = new Properties();
+      props.putAll(emails);
+      try {
+        Files.createDirectories(stateDir.toPath());
+        try (OutputStream out = Files.newOutputStream(cacheFile.toPath())) {
+          props.store(out, "Perforce user emails");
+        }
+      } catch (IOException e) {
+        LOG.debug("Unable to write " + cacheFile, e);
+      }
+    }
+    return emails;
+  }
+
+  /**
+   * Emails of all the users, with a single <code>users</code> command.
+   */
+  static Map<String, String> fetchEmails(IOptionsServer server) throws P4JavaException {
+    Map<String, String> emails = new HashMap<String, String>();
+    for (IUserSummary user : server.getUsers(null, new GetUsersOptions())) {
+      if (user.getLoginName() != null && StringUtils.isNotBlank(user.getEmail())) {
+        emails.put(user.getLoginName(), user.getEmail());
+      }
+    }
+    return emails;
+  }
+
+  @CheckForNull
+  private static Properties read(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    Properties props = new Properties();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      props.load(in);
+      return props;
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + file, e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.core.IUserGroup;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.option.server.GetUserGroupsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Size of the batches of files sent in a single command, kept below the limits of the groups of the user (MaxResults,
+ * MaxScanRows) so that one large request is not rejected as a whole.
+ * <p>
+ * The size starts from the effective limits of the user, that is the highest limit of the groups they belong to, and
+ * is halved each time the server rejects a batch because of a limit. The last size that worked is kept for the rest
+ * of the analysis, so that later batches do not hit the limit again.
+ */
+class BatchSizer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BatchSizer.class);
+
+  static final int MAX_BATCH_SIZE = 1000;
+
+  private static final Pattern LIMIT_ERROR = Pattern.compile("maxresults|maxscanrows|maxlocktime",
+    Pattern.CASE_INSENSITIVE);
+
+  /**
+   * A command run on a batch of items.
+   */
+  interface Batch<S> {
+    void run(List<S> items) throws P4JavaException;
+  }
+
+  private volatile int size;
+
+  BatchSizer(int size) {
+    this.size = Math.max(1, Math.min(MAX_BATCH_SIZE, size));
+  }
+
+  /**
+   * Batch sizer derived from the effective limits of the user of the connection. Limits that can not be read are
+   * considered unlimited.
+   */
+  static BatchSizer forUser(IOptionsServer server) {
+    int size = MAX_BATCH_SIZE;
+    try {
+      List<IUserGroup> groups = server.getUserGroups(server.getUserName(),
+        new GetUserGroupsOptions().setIndirect(true).setDisplayValues(true));
+      size = sizeFor(effectiveLimit(groups, true), effectiveLimit(groups, false));
+    } catch (P4JavaException | RuntimeException e) {
+      LOG.debug("Unable to read the limits of the Perforce user", e);
+    }
+    LOG.debug("Perforce batch size: " + size);
+    return new BatchSizer(size);
+  }
+
+  /**
+   * Highest limit set by the groups: a user belonging to several groups gets the most permissive one.
+   *
+   * @return the limit, or {@link IUserGroup#UNLIMITED}
+   */
+  @VisibleForTesting
+  static int effectiveLimit(@Nullable List<IUserGroup> groups, boolean maxResults) {
+    int limit = IUserGroup.UNSET;
+    if (groups != null) {
+      for (IUserGroup group : groups) {
+        int value = maxResults ? group.getMaxResults() : group.getMaxScanRows();
+        if (value == IUserGroup.UNLIMITED) {
+          return IUserGroup.UNLIMITED;
+        }
+        limit = Math.max(limit, value);
+      }
+    }
+    return limit == IUserGroup.UNSET ? IUserGroup.UNLIMITED : limit;
+  }
+
+  @VisibleForTesting
+  static int sizeFor(int maxResults, int maxScanRows) {
+    int size = MAX_BATCH_SIZE;
+    // Leave room for the other rows of each file, such as the have and revision records
+    if (maxResults > 0) {
+      size = Math.min(size, maxResults / 2);
+    }
+    if (maxScanRows > 0) {
+      size = Math.min(size, maxScanRows / 2);
+    }
+    return Math.max(1, size);
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Run a command over batches of items. A batch rejected because of a server limit is split in half and run again,
+   * down to a single item.
+   */
+  <S> void run(List<S> items, Batch<S> batch) throws P4JavaException {
+    int from = 0;
+    while (from < items.size()) {
+      List<S> batchItems = items.subList(from, Math.min(items.size(), from + size));
+      try {
+        batch.run(batchItems);
+      } catch (P4JavaException e) {
+        if (!isLimitError(e.getMessage()) || batchItems.size() == 1) {
+          throw e;
+        }
+        limitExceeded(batchItems.size(), e.getMessage());
+        continue;
+      }
+      from += batchItems.size();
+    }
+  }
+
+  private synchronized void limitExceeded(int failedSize, String message) {
+    // Another worker may have lowered the size already
+    size = Math.min(size, Math.max(1, failedSize / 2));
+    LOG.info("Perforce server limit hit with " + failedSize + " files, using batches of " + size + ": "
+      + message.trim());
+  }
+
+  /**
+   * Limit errors are reported by some commands as file results rather than exceptions.
+   *
+   * @throws RequestException if a result is a limit error
+   */
+  static void checkLimits(List<? extends IFileSpec> results) throws RequestException {
+    for (IFileSpec result : results) {
+      if (FileSpecOpStatus.ERROR.equals(result.getOpStatus()) && isLimitError(result.getStatusMessage())) {
+        throw new RequestException(result.getStatusMessage());
+      }
+    }
+  }
+
+  static boolean isLimitError(@Nullable String message) {
+    return message != null && LIMIT_ERROR.matcher(message).find();
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.server.IOptionsServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-lived local process blaming files of a workspace on behalf of the analyses run on the same machine, so that
+ * they neither connect and log in to the Perforce server nor start with empty caches. It keeps its connections, the
+ * changelists and users already fetched, and the blame of the most recent file revisions. Connection settings and
+ * the workspace are read from system properties, with the same keys as the analysis properties:
+ *
+ * <pre>
+ * java -Dsonar.perforce.port=ssl:perforce:1666 -Dsonar.perforce.username=sonar -Dsonar.perforce.clientName=build \
+ *   -Dsonar.perforce.blame.threads=4 -cp &lt;classpath&gt; org.sonar.plugins.scm.perforce.BlameAgent 7666
+ * </pre>
+ *
+ * The classpath must also contain <code>sonar-plugin-api</code>, see the README. The agent only listens to the
+ * loopback interface, and only answers requests carrying the token it writes at startup to {@link #tokenFile}, which
+ * only the user running the agent can read. Requests for another workspace than its own are refused.
+ * {@link BlameAgentClient} describes the protocol.
+ */
+public class BlameAgent implements HttpHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameAgent.class);
+
+  static final int MAX_RECENT_FILES = 10000;
+  static final String TOKEN_HEADER = "X-Blame-Agent-Token";
+  /** Header of a blame with changelists the agent failed to resolve, which the analysis must not persist. */
+  static final String INCOMPLETE_HEADER = "X-Blame-Incomplete";
+
+  private final PerforceBlameCommand command;
+  private final String clientName;
+  private final File tokenFile;
+  private final byte[] token;
+  private final BlockingQueue<Connection> connections;
+  private final Map<String, FileBlameData> recent = Collections.synchronizedMap(
+    new LinkedHashMap<String, FileBlameData>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FileBlameData> eldest) {
+        return size() > MAX_RECENT_FILES;
+      }
+    });
+  private Map<String, String> emails;
+  private long emailsLoadedAt;
+  private HttpServer httpServer;
+  private ExecutorService executor;
+
+  /**
+   * @param servers connections to share between requests, one request at a time each
+   * @param clientName the only workspace whose files are blamed
+   * @param tokenFile where the token expected from clients is written
+   */
+  BlameAgent(PerforceBlameCommand command, List<IOptionsServer> servers, String clientName, File tokenFile) {
+    this.command = command;
+    this.clientName = clientName;
+    this.tokenFile = tokenFile;
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    this.token = String.format("%064x", new BigInteger(1, random)).getBytes(StandardCharsets.US_ASCII);
+    this.connections = new ArrayBlockingQueue<Connection>(servers.size());
+    for (IOptionsServer server : servers) {
+      connections.add(new Connection(server));
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: BlameAgent <port>");
+      System.exit(1);
+    }
+    PerforceConfiguration config = new PerforceConfiguration(new SystemPropertiesConfiguration());
+    String clientName = config.clientName();
+    if (clientName == null) {
+      System.err.println("The workspace of the agent must be given with -Dsonar.perforce.clientName");
+      System.exit(1);
+    }
+    int port = Integer.parseInt(args[0]);
+    List<IOptionsServer> servers = new ArrayList<IOptionsServer>();
+    for (int i = 0; i < config.blameThreads(); i++) {
+      servers.add(new PerforceExecutor(config).getServer());
+    }
+    new BlameAgent(new PerforceBlameCommand(config), servers, clientName, tokenFile(config, port)).start(port);
+    LOG.info("Blame agent of workspace " + clientName + " listening on port " + port);
+  }
+
+  /**
+   * File holding the token of the agent listening on a port, in the root of the state directories.
+   */
+  static File tokenFile(PerforceConfiguration config, int port) {
+    return new File(StateDirectory.root(config), "blame-agent-" + port + ".token");
+  }
+
+  /**
+   * @param port port to listen to, 0 for any free port
+   * @return the port the agent listens to
+   */
+  int start(int port) throws IOException {
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext("/", this);
+    executor = Executors.newFixedThreadPool(connections.size());
+    httpServer.setExecutor(executor);
+    writeOwnerOnly(tokenFile.toPath(), token);
+    httpServer.start();
+    return httpServer.getAddress().getPort();
+  }
+
+  void stop() {
+    httpServer.stop(0);
+    executor.shutdown();
+    try {
+      Files.deleteIfExists(tokenFile.toPath());
+    } catch (IOException e) {
+      LOG.debug("Unable to delete " + tokenFile, e);
+    }
+  }
+
+  /**
+   * Writes a file only readable by the current user, created with these permissions so that no one else can open it
+   * in between.
+   */
+  static void writeOwnerOnly(Path file, byte[] content) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.deleteIfExists(tmp);
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      File created = tmp.toFile();
+      if (!created.createNewFile() || !created.setReadable(false, false) || !created.setReadable(true, true)
+        || !created.setWritable(false, false) || !created.setWritable(true, true)) {
+        throw new IOException("Unable to restrict the permissions of " + tmp);
+      }
+    }
+    try {
+      Files.write(tmp, content);
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      String presented = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+      if (presented == null || !MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.US_ASCII))) {
+        exchange.sendResponseHeaders(401, -1);
+        return;
+      }
+      String path = exchange.getRequestURI().getPath();
+      Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+      if ("/status".equals(path)) {
+        send(exchange, "OK".getBytes(StandardCharsets.UTF_8));
+      } else if ("/blame".equals(path) && params.containsKey("client") && params.containsKey("path")) {
+        if (!clientName.equals(params.get("client"))) {
+          LOG.warn("Refusing to blame files of workspace " + params.get("client") + ", agent serves " + clientName);
+          exchange.sendResponseHeaders(403, -1);
+          return;
+        }
+        blame(exchange, params.get("path"));
+      } else if ("/users".equals(path)) {
+        users(exchange);
+      } else {
+        exchange.sendResponseHeaders(404, -1);
+      }
+    } catch (RuntimeException e) {
+      LOG.error("Unable to handle " + exchange.getRequestURI(), e);
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void blame(HttpExchange exchange, String path) throws IOException {
+    Connection connection = take();
+    try {
+      FileBlameData data = connection.blame(path);
+      if (data == null) {
+        exchange.sendResponseHeaders(404, -1);
+      } else {
+        if (!data.complete) {
+          exchange.getResponseHeaders().set(INCOMPLETE_HEADER, "true");
+        }
+        send(exchange, BlameDataCodec.encode(data));
+      }
+    } catch (P4JavaException e) {
+      LOG.error("Unable to blame " + path, e);
+      connection.reset(e);
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      connections.add(connection);
+    }
+  }
+
+  private void users(HttpExchange exchange) throws IOException {
+    Connection connection = take();
+    try {
+      Properties props = new Properties();
+      props.putAll(emails(connection.server));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      props.store(out, null);
+      send(exchange, out.toByteArray());
+    } catch (P4JavaException e) {
+      LOG.error("Unable to get users", e);
+      connection.reset(e);
+      exchange.sendResponseHeaders(500, -1);
+    } finally {
+      connections.add(connection);
+    }
+  }
+
+  private synchronized Map<String, String> emails(IOptionsServer server) throws P4JavaException {
+    if (emails == null || System.currentTimeMillis() - emailsLoadedAt > AuthorResolver.USERS_TTL_MILLIS) {
+      emails = AuthorResolver.fetchEmails(server);
+      emailsLoadedAt = System.currentTimeMillis();
+    }
+    return emails;
+  }
+
+  private Connection take() {
+    try {
+      return connections.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a connection", e);
+    }
+  }
+
+  private static void send(HttpExchange exchange, byte[] content) throws IOException {
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(content);
+    }
+  }
+
+  private static Map<String, String> params(String query) throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query == null) {
+      return params;
+    }
+    for (String param : query.split("&")) {
+      int eq = param.indexOf('=');
+      if (eq > 0) {
+        params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"),
+          URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  /**
+   * A connection and the client workspace once looked up with it.
+   */
+  private class Connection {
+    private final IOptionsServer server;
+    private IClient client;
+
+    Connection(IOptionsServer server) {
+      this.server = server;
+    }
+
+    @CheckForNull
+    FileBlameData blame(String path) throws P4JavaException {
+      if (!server.isConnected()) {
+        server.connect();
+      }
+      if (client == null) {
+        client = server.getClient(clientName);
+        if (client == null) {
+          throw new IllegalStateException("Unable to find client with name " + clientName);
+        }
+      }
+      if (server.getCurrentClient() != client) {
+        server.setCurrentClient(client);
+      }
+
+      IFileSpec fileSpec = new FileSpec(PerforceExecutor.encodeWildcards(path));
+      fileSpec.setEndRevision(IFileSpec.HAVE_REVISION);
+      IExtendedFileSpec haveRevision = PerforceBlameCommand.haveRevision(server, fileSpec);
+      if (haveRevision == null) {
+        LOG.debug("File " + path + " is not submitted");
+        return null;
+      }
+      String key = haveRevision.getDepotPathString() + "#" + haveRevision.getHaveRev();
+      FileBlameData data = recent.get(key);
+      if (data != null) {
+        return data;
+      }
+      IFileSpec revisionSpec = new FileSpec(haveRevision.getDepotPathString());
+      revisionSpec.setEndRevision(haveRevision.getHaveRev());
+      data = command.annotate(revisionSpec, path, server, PerforceBlameCommand.getFileAnnotationOptions());
+      if (data != null && data.complete) {
+        recent.put(key, data);
+      }
+      return data;
+    }
+
+    /**
+     * Disconnect after a connection failure, the next request connects again.
+     */
+    void reset(P4JavaException e) {
+      if (!(e instanceof ConnectionException)) {
+        return;
+      }
+      client = null;
+      try {
+        server.disconnect();
+      } catch (P4JavaException | RuntimeException disconnectError) {
+        LOG.debug("Unable to disconnect", disconnectError);
+      }
+    }
+  }
+}
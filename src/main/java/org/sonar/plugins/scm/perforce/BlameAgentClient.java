@@ -0,0 +1,193 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+
+/**
+ * Client of the {@link BlameAgent} running on the same machine:
+ * <ul>
+ * <li><code>GET /status</code> answers 200 when the agent is up</li>
+ * <li><code>GET /blame?client={workspace}&amp;path={local path}</code> returns the blame of the have revision of the
+ * file encoded with {@link BlameDataCodec}, or 404 if the file is not submitted. A blame with changelists the agent
+ * failed to resolve carries the {@link BlameAgent#INCOMPLETE_HEADER} header</li>
+ * <li><code>GET /users</code> returns the emails of the Perforce users as a properties file</li>
+ * </ul>
+ * Every request carries the token read from the token file of the agent, and is refused with 401 otherwise.
+ */
+class BlameAgentClient implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameAgentClient.class);
+
+  private final String baseUrl;
+  private final String clientName;
+  private final String token;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * @param connectTimeoutMillis time to wait for the agent to accept a connection
+   * @param timeoutMillis time to wait for the answer of a request, which the agent only sends once the blame of the
+   *          file is computed
+   * @param maxConnections number of requests sent at once, one per blame thread
+   */
+  BlameAgentClient(int port, String clientName, String token, int connectTimeoutMillis, int timeoutMillis,
+    int maxConnections) {
+    this.baseUrl = "http://127.0.0.1:" + port;
+    this.clientName = clientName;
+    this.token = token;
+    RequestConfig requestConfig = RequestConfig.custom()
+      .setConnectTimeout(connectTimeoutMillis)
+      .setSocketTimeout(timeoutMillis)
+      .build();
+    this.httpClient = HttpClients.custom()
+      .setDefaultRequestConfig(requestConfig)
+      .setMaxConnPerRoute(maxConnections)
+      .setMaxConnTotal(maxConnections)
+      .build();
+  }
+
+  /**
+   * @param tokenFile file where the agent wrote its token
+   * @return a client of the agent, or <code>null</code> if no agent answers on the port
+   */
+  @CheckForNull
+  static BlameAgentClient connect(int port, String clientName, File tokenFile, int connectTimeoutMillis,
+    int timeoutMillis, int maxConnections) {
+    String token;
+    try {
+      token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+    } catch (IOException e) {
+      LOG.info("No blame agent token in " + tokenFile + ", connecting to Perforce directly");
+      LOG.debug("Unable to read blame agent token", e);
+      return null;
+    }
+    BlameAgentClient agent = new BlameAgentClient(port, clientName, token, connectTimeoutMillis, timeoutMillis,
+      maxConnections);
+    try (CloseableHttpResponse response = agent.httpClient.execute(agent.get("/status"))) {
+      EntityUtils.consumeQuietly(response.getEntity());
+      if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+        return agent;
+      }
+      LOG.info("Unexpected status " + response.getStatusLine().getStatusCode() + " from blame agent on port " + port);
+    } catch (IOException e) {
+      LOG.info("No blame agent on port " + port + ", connecting to Perforce directly");
+      LOG.debug("Unable to reach blame agent", e);
+    }
+    agent.close();
+    return null;
+  }
+
+  /**
+   * @return data needed to build the blame, or <code>null</code> if the file has to be skipped
+   * @throws IOException if the agent did not answer in time or failed to blame the file
+   */
+  @CheckForNull
+  FileBlameData fetch(InputFile inputFile) throws IOException {
+    URI uri = inputFile.uri();
+    if (uri == null) {
+      return null;
+    }
+    HttpGet get = get("/blame?client=" + encode(clientName) + "&path=" + encode(Paths.get(uri).toString()));
+    try (CloseableHttpResponse response = httpClient.execute(get)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status == HttpStatus.SC_NOT_FOUND) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        LOG.debug("File " + inputFile + " is not submitted. Skipping it.");
+        return null;
+      }
+      if (status != HttpStatus.SC_OK) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        throw new IOException("Blame agent failed to blame " + inputFile + " (status " + status + ")");
+      }
+      FileBlameData data = BlameDataCodec.decode(EntityUtils.toByteArray(response.getEntity()));
+      if (response.containsHeader(BlameAgent.INCOMPLETE_HEADER)) {
+        return new FileBlameData(data.changelistIds, data.linesByChangelistId, false, false);
+      }
+      return data;
+    }
+  }
+
+  Map<String, String> users() {
+    try (CloseableHttpResponse response = httpClient.execute(get("/users"))) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status != HttpStatus.SC_OK) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        throw new IllegalStateException("Blame agent failed to list users (status " + status + ")");
+      }
+      Properties props = new Properties();
+      props.load(new ByteArrayInputStream(EntityUtils.toByteArray(response.getEntity())));
+      Map<String, String> emails = new HashMap<String, String>();
+      for (String user : props.stringPropertyNames()) {
+        emails.put(user, props.getProperty(user));
+      }
+      return emails;
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to get users from blame agent", e);
+    }
+  }
+
+  private HttpGet get(String pathAndQuery) {
+    HttpGet get = new HttpGet(baseUrl + pathAndQuery);
+    get.setHeader(BlameAgent.TOKEN_HEADER, token);
+    return get;
+  }
+
+  private static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      LOG.debug("Unable to close blame agent client", e);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+
+/**
+ * Estimated cost of blaming each file, used to start the most expensive files first so that a large file does not
+ * end up alone at the tail of a concurrent run.
+ * <p>
+ * The estimate is the blame duration measured by a previous analysis when available. Other files are estimated from
+ * their line count, scaled by the average duration per line observed previously.
+ */
+class BlameCosts {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameCosts.class);
+
+  static final String FILENAME = "perforce-blame-costs.properties";
+
+  private final Map<String, Long> previousMillis = new ConcurrentHashMap<String, Long>();
+  private final Map<String, Long> measuredMillis = new ConcurrentHashMap<String, Long>();
+  @Nullable
+  private final File file;
+  private double millisPerLine = 1;
+
+  private BlameCosts(@Nullable File file) {
+    this.file = file;
+  }
+
+  /**
+   * @param stateDir directory where costs are kept between analyses, or <code>null</code> to only use line counts
+   */
+  static BlameCosts load(@Nullable File stateDir) {
+    BlameCosts costs = new BlameCosts(stateDir != null ? new File(stateDir, FILENAME) : null);
+    if (costs.file != null && costs.file.isFile()) {
+      Properties props = new Properties();
+      try (InputStream in = Files.newInputStream(costs.file.toPath())) {
+        props.load(in);
+      } catch (IOException e) {
+        LOG.debug("Unable to read blame costs from " + costs.file, e);
+      }
+      for (String key : props.stringPropertyNames()) {
+        try {
+          costs.previousMillis.put(key, Long.parseLong(props.getProperty(key)));
+        } catch (NumberFormatException e) {
+          LOG.debug("Ignoring invalid blame cost for " + key);
+        }
+      }
+    }
+    return costs;
+  }
+
+  /**
+   * Sort files by decreasing estimated cost.
+   */
+  List<InputFile> schedule(Iterable<InputFile> files) {
+    List<InputFile> result = new ArrayList<InputFile>();
+    long knownLines = 0;
+    long knownMillis = 0;
+    for (InputFile inputFile : files) {
+      result.add(inputFile);
+      Long millis = previousMillis.get(key(inputFile));
+      if (millis != null) {
+        knownLines += inputFile.lines();
+        knownMillis += millis;
+      }
+    }
+    if (knownLines > 0) {
+      millisPerLine = (double) knownMillis / knownLines;
+    }
+    Collections.sort(result, new Comparator<InputFile>() {
+      @Override
+      public int compare(InputFile f1, InputFile f2) {
+        return Double.compare(estimate(f2), estimate(f1));
+      }
+    });
+    return result;
+  }
+
+  double estimate(InputFile inputFile) {
+    Long millis = previousMillis.get(key(inputFile));
+    if (millis != null) {
+      return millis;
+    }
+    return inputFile.lines() * millisPerLine;
+  }
+
+  void record(InputFile inputFile, long millis) {
+    measuredMillis.put(key(inputFile), millis);
+  }
+
+  /**
+   * Persist costs measured during this analysis, keeping previous ones for files that were not blamed.
+   */
+  void save() {
+    if (file == null || measuredMillis.isEmpty()) {
+      return;
+    }
+    Properties props = new Properties();
+    for (Map.Entry<String, Long> entry : previousMillis.entrySet()) {
+      props.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+    }
+    for (Map.Entry<String, Long> entry : measuredMillis.entrySet()) {
+      props.setProperty(entry.getKey(), String.valueOf(entry.getValue()));
+    }
+    try {
+      Files.createDirectories(file.getParentFile().toPath());
+    } catch (IOException e) {
+      LOG.debug("Unable to create " + file.getParentFile(), e);
+      return;
+    }
+    try (OutputStream out = Files.newOutputStream(file.toPath())) {
+      props.store(out, "Perforce blame duration per file (ms)");
+    } catch (IOException e) {
+      LOG.debug("Unable to write blame costs to " + file, e);
+    }
+  }
+
+  private static String key(InputFile inputFile) {
+    return inputFile.toString();
+  }
+}
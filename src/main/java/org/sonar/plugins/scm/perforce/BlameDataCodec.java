@@ -0,0 +1,210 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Compact binary encoding of the blame of a file: a dictionary of the changelists it references, followed by
+ * run-length encoded dictionary indices, one run per block of consecutive lines coming from the same changelist.
+ * Integers are written as unsigned variable-length values.
+ * <p>
+ * Encoded blames may come from other processes, so sizes are checked before anything is allocated.
+ */
+final class BlameDataCodec {
+
+  private static final int UNKNOWN = 0;
+  private static final int KNOWN = 1;
+  /** Upper bound on the number of lines, and so of changelists, of an encoded blame. */
+  static final int MAX_LINES = 1 << 22;
+
+  private BlameDataCodec() {
+    // only static methods
+  }
+
+  static byte[] encode(FileBlameData data) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      write(out, data);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode blame", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  static FileBlameData decode(byte[] bytes) throws IOException {
+    return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  static void write(DataOutput out, FileBlameData data) throws IOException {
+    Map<Integer, Integer> indexByChangelistId = new LinkedHashMap<Integer, Integer>();
+    int[] indices = new int[data.changelistIds.length];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = index(indexByChangelistId, data.changelistIds[i]);
+    }
+    writeVarInt(out, indexByChangelistId.size());
+    for (Integer changelistId : indexByChangelistId.keySet()) {
+      writeChangelist(out, changelistId, data.linesByChangelistId.get(changelistId));
+    }
+    writeRuns(out, indices);
+  }
+
+  static FileBlameData read(DataInput in) throws IOException {
+    int dictionarySize = readSize(in);
+    int[] dictionary = new int[dictionarySize];
+    Map<Integer, BlameLine> linesByChangelistId = new HashMap<Integer, BlameLine>();
+    for (int i = 0; i < dictionarySize; i++) {
+      dictionary[i] = readChangelist(in, linesByChangelistId);
+    }
+    int[] changelistIds = readRuns(in);
+    for (int i = 0; i < changelistIds.length; i++) {
+      if (changelistIds[i] < 0 || changelistIds[i] >= dictionarySize) {
+        throw new IOException("Invalid changelist index " + changelistIds[i]);
+      }
+      changelistIds[i] = dictionary[changelistIds[i]];
+    }
+    return new FileBlameData(changelistIds, linesByChangelistId);
+  }
+
+  /**
+   * Index of a changelist in a dictionary, adding it if needed.
+   */
+  static int index(Map<Integer, Integer> indexByChangelistId, int changelistId) {
+    Integer index = indexByChangelistId.get(changelistId);
+    if (index == null) {
+      index = indexByChangelistId.size();
+      indexByChangelistId.put(changelistId, index);
+    }
+    return index;
+  }
+
+  static void writeChangelist(DataOutput out, int changelistId, @Nullable BlameLine line) throws IOException {
+    writeVarInt(out, changelistId);
+    if (line == null) {
+      out.writeByte(UNKNOWN);
+    } else {
+      out.writeByte(KNOWN);
+      out.writeLong(line.date() != null ? line.date().getTime() : 0L);
+      out.writeUTF(line.author() != null ? line.author() : "");
+    }
+  }
+
+  /**
+   * @param linesByChangelistId receives the blame line of the changelist if it is known
+   * @return id of the changelist
+   */
+  static int readChangelist(DataInput in, Map<Integer, BlameLine> linesByChangelistId) throws IOException {
+    int changelistId = readVarInt(in);
+    if (in.readByte() == KNOWN) {
+      Date date = new Date(in.readLong());
+      String author = in.readUTF();
+      linesByChangelistId.put(changelistId,
+        new BlameLine().revision(String.valueOf(changelistId)).date(date).author(author));
+    }
+    return changelistId;
+  }
+
+  static void writeRuns(DataOutput out, int[] values) throws IOException {
+    List<int[]> runs = new ArrayList<int[]>();
+    for (int value : values) {
+      int[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+      if (last != null && last[0] == value) {
+        last[1]++;
+      } else {
+        runs.add(new int[] {value, 1});
+      }
+    }
+    writeVarInt(out, runs.size());
+    for (int[] run : runs) {
+      writeVarInt(out, run[0]);
+      writeVarInt(out, run[1]);
+    }
+  }
+
+  static int[] readRuns(DataInput in) throws IOException {
+    int runCount = readSize(in);
+    List<int[]> runs = new ArrayList<int[]>();
+    int length = 0;
+    for (int i = 0; i < runCount; i++) {
+      int[] run = new int[] {readVarInt(in), readSize(in)};
+      length += run[1];
+      if (length > MAX_LINES) {
+        throw new IOException("Too many lines: " + length);
+      }
+      runs.add(run);
+    }
+    int[] values = new int[length];
+    int position = 0;
+    for (int[] run : runs) {
+      Arrays.fill(values, position, position + run[1], run[0]);
+      position += run[1];
+    }
+    return values;
+  }
+
+  static void writeVarInt(DataOutput out, int value) throws IOException {
+    int remaining = value;
+    while ((remaining & ~0x7F) != 0) {
+      out.writeByte((remaining & 0x7F) | 0x80);
+      remaining >>>= 7;
+    }
+    out.writeByte(remaining);
+  }
+
+  /**
+   * Reads a number of lines or of changelists, checking it is not larger than {@link #MAX_LINES}.
+   */
+  static int readSize(DataInput in) throws IOException {
+    int size = readVarInt(in);
+    if (size < 0 || size > MAX_LINES) {
+      throw new IOException("Invalid size " + size);
+    }
+    return size;
+  }
+
+  static int readVarInt(DataInput in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable-length integer");
+  }
+}
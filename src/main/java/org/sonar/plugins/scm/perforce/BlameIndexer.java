@@ -0,0 +1,256 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetChangelistsOptions;
+import com.perforce.p4java.option.server.GetDepotFilesOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Command-line daemon keeping a blame index of a depot path up to date, so that analyses configured with
+ * <code>sonar.perforce.blame.index</code> read blame instead of annotating files. Connection settings are the plugin
+ * properties, given as system properties:
+ *
+ * <pre>
+ * java -Dsonar.perforce.port=perforce:1666 -Dsonar.perforce.username=indexer -cp &lt;classpath&gt; \
+ *   org.sonar.plugins.scm.perforce.BlameIndexer //depot/project/... /var/lib/blame-index [interval seconds|--once]
+ * </pre>
+ *
+ * The classpath must also contain <code>sonar-plugin-api</code>, see the README.
+ * <p>
+ * The first run indexes every file at the latest changelist. Following runs list the changelists submitted since the
+ * last indexed one, and blame the revisions they submitted, incrementally from the indexed revision when possible.
+ * The last indexed changelist is saved after each changelist, so the daemon can be stopped at any time.
+ */
+public class BlameIndexer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameIndexer.class);
+
+  static final String COUNTER_FILENAME = "counter";
+  private static final int DEFAULT_INTERVAL_SECONDS = 60;
+  /** Longest wait between two attempts to connect to the server again. */
+  static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final IOptionsServer server;
+  private final PerforceBlameCommand command;
+  private final String depotPath;
+  private final File indexDir;
+  private final IncrementalAnnotator incremental;
+
+  BlameIndexer(IOptionsServer server, PerforceBlameCommand command, String depotPath, File indexDir) {
+    this.server = server;
+    this.command = command;
+    this.depotPath = depotPath;
+    this.indexDir = indexDir;
+    this.incremental = new IncrementalAnnotator(new LocalBlameCache(indexDir));
+  }
+
+  public static void main(String[] args) throws IOException, P4JavaException, InterruptedException {
+    if (args.length < 2 || args.length > 3) {
+      System.err.println("Usage: BlameIndexer <depot path> <index directory> [interval seconds|--once]");
+      System.exit(1);
+    }
+    boolean once = args.length == 3 && "--once".equals(args[2]);
+    int interval = args.length == 3 && !once ? Integer.parseInt(args[2]) : DEFAULT_INTERVAL_SECONDS;
+    PerforceConfiguration config = new PerforceConfiguration(new SystemPropertiesConfiguration());
+    PerforceBlameCommand command = new PerforceBlameCommand(config);
+    String depotPath = args[0];
+    File indexDir = new File(args[1]);
+    if (once) {
+      PerforceExecutor executor = new PerforceExecutor(config);
+      try {
+        new BlameIndexer(executor.getServer(), command, depotPath, indexDir).update();
+      } finally {
+        executor.clean();
+      }
+      return;
+    }
+    runDaemon(() -> new PerforceExecutor(config), server -> new BlameIndexer(server, command, depotPath, indexDir),
+      TimeUnit.SECONDS.toMillis(interval));
+  }
+
+  /**
+   * Updates the index every interval until the thread is interrupted. When the connection is lost or can't be opened,
+   * a new one is opened after a wait doubling at each failure, up to {@link #MAX_BACKOFF_MILLIS}. Other failures are
+   * logged and the update is tried again at the next interval.
+   *
+   * @param connector opens a connection to the server
+   * @param indexers creates the indexer working with a connection
+   */
+  static void runDaemon(Supplier<PerforceExecutor> connector, Function<IOptionsServer, BlameIndexer> indexers,
+    long intervalMillis) throws InterruptedException {
+    PerforceExecutor executor = null;
+    BlameIndexer indexer = null;
+    long backoffMillis = intervalMillis;
+    try {
+      while (true) {
+        long waitMillis = intervalMillis;
+        try {
+          if (executor == null) {
+            executor = connector.get();
+            indexer = indexers.apply(executor.getServer());
+          }
+          indexer.update();
+          backoffMillis = intervalMillis;
+        } catch (ConnectionException e) {
+          LOG.error("Connection to Perforce server lost, connecting again in " + backoffMillis + " ms", e);
+          executor.clean();
+          executor = null;
+          waitMillis = backoffMillis;
+          backoffMillis = Math.min(2 * backoffMillis, MAX_BACKOFF_MILLIS);
+        } catch (P4JavaException | IOException | RuntimeException e) {
+          if (executor == null) {
+            LOG.error("Unable to connect to Perforce server, trying again in " + backoffMillis + " ms", e);
+            waitMillis = backoffMillis;
+            backoffMillis = Math.min(2 * backoffMillis, MAX_BACKOFF_MILLIS);
+          } else {
+            LOG.error("Unable to update blame index, will retry", e);
+          }
+        }
+        TimeUnit.MILLISECONDS.sleep(waitMillis);
+      }
+    } finally {
+      if (executor != null) {
+        executor.clean();
+      }
+    }
+  }
+
+  /**
+   * Index changelists submitted since the last update.
+   *
+   * @return number of file revisions indexed
+   */
+  int update() throws P4JavaException, IOException {
+    Files.createDirectories(indexDir.toPath());
+    int counter = readCounter(indexDir);
+    if (counter == 0) {
+      int latest = latestChangelist();
+      if (latest == 0) {
+        return 0;
+      }
+      int count = indexFiles(depotPath + "@" + latest);
+      writeCounter(latest);
+      LOG.info("Indexed blame of " + count + " files of " + depotPath + " at changelist " + latest);
+      return count;
+    }
+
+    int count = 0;
+    for (int changelistId : changelistsSince(counter)) {
+      count += indexFiles(depotPath + "@=" + changelistId);
+      writeCounter(changelistId);
+      LOG.info("Indexed changelist " + changelistId);
+    }
+    return count;
+  }
+
+  /**
+   * @return last changelist indexed in the directory, 0 if none
+   */
+  static int readCounter(File indexDir) {
+    File file = new File(indexDir, COUNTER_FILENAME);
+    if (!file.isFile()) {
+      return 0;
+    }
+    try {
+      return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+    } catch (IOException | NumberFormatException e) {
+      LOG.debug("Unable to read " + file, e);
+      return 0;
+    }
+  }
+
+  private void writeCounter(int changelistId) throws IOException {
+    Path tmp = Files.createTempFile(indexDir.toPath(), COUNTER_FILENAME, ".tmp");
+    Files.write(tmp, String.valueOf(changelistId).getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, new File(indexDir, COUNTER_FILENAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private int latestChangelist() throws P4JavaException {
+    List<IChangelistSummary> changelists = server.getChangelists(FileSpecBuilder.makeFileSpecList(depotPath),
+      new GetChangelistsOptions().setType(IChangelist.Type.SUBMITTED).setMaxMostRecent(1));
+    return changelists.isEmpty() ? 0 : changelists.get(0).getId();
+  }
+
+  private List<Integer> changelistsSince(int counter) throws P4JavaException {
+    List<IChangelistSummary> changelists = server.getChangelists(
+      FileSpecBuilder.makeFileSpecList(depotPath + "@" + (counter + 1) + ",#head"),
+      new GetChangelistsOptions().setType(IChangelist.Type.SUBMITTED));
+    List<Integer> ids = new ArrayList<Integer>();
+    for (IChangelistSummary changelist : changelists) {
+      ids.add(changelist.getId());
+    }
+    // Server lists most recent first
+    Collections.sort(ids);
+    return ids;
+  }
+
+  private int indexFiles(String spec) throws P4JavaException {
+    int count = 0;
+    for (IFileSpec file : server.getDepotFiles(FileSpecBuilder.makeFileSpecList(spec), new GetDepotFilesOptions())) {
+      if (!FileSpecOpStatus.VALID.equals(file.getOpStatus()) || BlameSnapshotBuilder.isDeleted(file.getAction())) {
+        continue;
+      }
+      if (indexFile(file.getDepotPathString(), file.getEndRevision())) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private boolean indexFile(String filePath, int revision) throws P4JavaException {
+    FileBlameData data = incremental.blame(filePath, revision, server);
+    if (data == null) {
+      IFileSpec revisionSpec = new FileSpec(filePath);
+      revisionSpec.setEndRevision(revision);
+      data = command.annotate(revisionSpec, filePath, server, PerforceBlameCommand.getFileAnnotationOptions());
+    }
+    if (data == null || !data.complete) {
+      // Left out of the index, so that analyses blame it on the server
+      return false;
+    }
+    incremental.record(filePath, revision, data);
+    return true;
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+
+/**
+ * Append-only journal of the files blamed by an analysis, so that an analysis failing halfway, for example on a
+ * connection drop, does not have to start over: the next attempt replays the files already blamed and only fetches
+ * the others. The journal is kept in the {@link StateDirectory}, since the scanner work directory is wiped when an
+ * analysis starts, and deleted once every file has been blamed.
+ * <p>
+ * Each record holds the blame of one file, prefixed with its length and CRC32. A record torn by a crash fails the
+ * check and is dropped with everything after it. Records are keyed by the file and the size and modification time of
+ * its content, so blame of a file edited or synced since the failed attempt is not replayed. Each record is forced to
+ * the disk before the file is reported blamed, so that a crash of the machine does not lose it.
+ */
+class BlameJournal implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameJournal.class);
+
+  static final String FILENAME = "perforce-blame.journal";
+  private static final int MAGIC = 0x50344a4c;
+  private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+  private final File file;
+  private final Map<String, FileBlameData> replayed;
+  private final FileChannel channel;
+  private final OutputStream out;
+
+  private BlameJournal(File file, Map<String, FileBlameData> replayed, FileChannel channel) {
+    this.file = file;
+    this.replayed = replayed;
+    this.channel = channel;
+    this.out = Channels.newOutputStream(channel);
+  }
+
+  /**
+   * Open the journal of the state directory, reading the records left by a previous attempt.
+   */
+  static BlameJournal open(File stateDir) throws IOException {
+    Files.createDirectories(stateDir.toPath());
+    File file = new File(stateDir, FILENAME);
+    Map<String, FileBlameData> replayed = new HashMap<String, FileBlameData>();
+    long validLength = file.isFile() ? read(file, replayed) : 0;
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      // Drop the torn tail, if any, so that new records follow valid ones
+      channel.truncate(validLength);
+      channel.position(validLength);
+      BlameJournal journal = new BlameJournal(file, replayed, channel);
+      if (validLength == 0) {
+        DataOutputStream header = new DataOutputStream(journal.out);
+        header.writeInt(MAGIC);
+        header.flush();
+      }
+      if (!replayed.isEmpty()) {
+        LOG.info("Resuming Perforce blame: " + replayed.size() + " files already blamed by a previous attempt");
+      }
+      return journal;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return length of the valid part of the journal
+   */
+  private static long read(File file, Map<String, FileBlameData> records) {
+    long validLength = 0;
+    try (InputStream stream = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+      DataInputStream in = new DataInputStream(stream);
+      if (in.readInt() != MAGIC) {
+        return 0;
+      }
+      validLength = 4;
+      while (true) {
+        int length = in.readInt();
+        int crc = in.readInt();
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+          break;
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (crc != crc(payload)) {
+          break;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        String key = record.readUTF();
+        records.put(key, BlameDataCodec.read(record));
+        validLength += 8 + length;
+      }
+    } catch (EOFException e) {
+      // End of the journal, or record torn by a crash
+    } catch (IOException e) {
+      LOG.debug("Unable to read " + file + " past " + validLength + " bytes", e);
+    }
+    return validLength;
+  }
+
+  /**
+   * @return blame of the file recorded by a previous attempt, or <code>null</code>
+   */
+  @CheckForNull
+  FileBlameData replay(InputFile inputFile) {
+    return replayed.get(key(inputFile));
+  }
+
+  synchronized void append(InputFile inputFile, FileBlameData data) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(payload);
+    record.writeUTF(key(inputFile));
+    BlameDataCodec.write(record, data);
+    record.flush();
+    byte[] bytes = payload.toByteArray();
+
+    ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.length + 8);
+    DataOutputStream frame = new DataOutputStream(framed);
+    frame.writeInt(bytes.length);
+    frame.writeInt(crc(bytes));
+    frame.write(bytes);
+    // A single write per record, so that a crash leaves at most one torn record
+    out.write(framed.toByteArray());
+    channel.force(false);
+  }
+
+  /**
+   * Delete the journal after a complete blame: there is nothing to resume.
+   */
+  void complete() throws IOException {
+    close();
+    Files.deleteIfExists(file.toPath());
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * The file and the size and modification time of its content: sync and edit both change the latter.
+   */
+  private static String key(InputFile inputFile) {
+    URI uri = inputFile.uri();
+    File localFile = uri != null ? new File(uri) : null;
+    if (localFile == null) {
+      return inputFile.toString();
+    }
+    return inputFile + "|" + localFile.length() + "|" + localFile.lastModified();
+  }
+
+  private static int crc(byte[] bytes) {
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+}
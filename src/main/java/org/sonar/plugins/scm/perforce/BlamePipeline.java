@@ -0,0 +1,254 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+
+import com.perforce.p4java.exception.P4JavaException;
+
+/**
+ * Runs the blame of a set of files as two stages connected by a bounded queue: fetch workers talking to the server
+ * (annotate, filelog, changelists) and the calling thread building blame lines and sending them to SonarQube. The
+ * connections keep working on the next files while results of the previous ones are assembled.
+ * <p>
+ * Each fetch worker owns one connection, or talks to the local blame agent, and takes the next file from a shared
+ * queue, most expensive files first, so that no worker is left alone with a large file at the end of the run. The
+ * first failure stops every worker and is rethrown on the calling thread once every file fetched before it has been
+ * emitted.
+ * <p>
+ * When an {@link AdaptiveConcurrencyLimiter} is given, workers also wait for its permission before each fetch, so
+ * that fewer connections are busy while the server is slow.
+ */
+class BlamePipeline {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlamePipeline.class);
+
+  /** Maximum number of fetched files waiting to be emitted. */
+  static final int QUEUE_CAPACITY = 32;
+
+  /**
+   * Network stage of the blame of a file, owned by a single fetch worker.
+   */
+  interface Fetch {
+    /**
+     * @return data needed to build the blame, or <code>null</code> if the file has to be skipped
+     */
+    @CheckForNull
+    FileBlameData fetch(InputFile inputFile) throws P4JavaException;
+  }
+
+  private final PerforceBlameCommand command;
+  private final List<Fetch> fetches;
+  private final BlameOutput output;
+  private final BlameCosts costs;
+  @Nullable
+  private final AdaptiveConcurrencyLimiter limiter;
+  private final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+  private volatile boolean cancelled;
+
+  /**
+   * @param fetches one per fetch worker
+   * @param limiter limits the number of fetches running at once, or null to run one per worker
+   */
+  BlamePipeline(PerforceBlameCommand command, List<Fetch> fetches, @Nullable AdaptiveConcurrencyLimiter limiter,
+    BlameOutput output, BlameCosts costs) {
+    this.command = command;
+    this.fetches = fetches;
+    this.output = output;
+    this.costs = costs;
+    this.limiter = limiter;
+  }
+
+  void run(Iterable<InputFile> files) {
+    Queue<InputFile> pending = new ConcurrentLinkedQueue<InputFile>(costs.schedule(files));
+    AtomicInteger running = new AtomicInteger(fetches.size());
+    List<Fetcher> fetchers = new ArrayList<Fetcher>();
+    List<Thread> threads = new ArrayList<Thread>();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < fetches.size(); i++) {
+      Fetcher fetcher = new Fetcher(fetches.get(i), pending, running);
+      Thread thread = new Thread(fetcher, "perforce-blame-fetch-" + i);
+      thread.setDaemon(true);
+      fetchers.add(fetcher);
+      threads.add(thread);
+      thread.start();
+    }
+    try {
+      consume();
+    } finally {
+      cancelled = true;
+      // Unblock fetch workers waiting for room in the queue
+      queue.clear();
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+      for (Thread thread : threads) {
+        join(thread);
+      }
+    }
+    logUtilization(fetchers, System.currentTimeMillis() - start);
+    if (limiter != null) {
+      limiter.logSummary();
+    }
+    costs.save();
+  }
+
+  private void consume() {
+    while (true) {
+      Item item = take();
+      if (item.failure != null) {
+        throw propagate(item.failure);
+      }
+      if (item.data == null) {
+        return;
+      }
+      command.emit(item.inputFile, item.data, output);
+    }
+  }
+
+  private static void logUtilization(List<Fetcher> fetchers, long elapsedMillis) {
+    if (fetchers.size() < 2) {
+      return;
+    }
+    for (int i = 0; i < fetchers.size(); i++) {
+      Fetcher fetcher = fetchers.get(i);
+      long utilization = elapsedMillis > 0 ? (100 * fetcher.busyMillis / elapsedMillis) : 100;
+      LOG.info("Perforce blame worker " + i + ": " + fetcher.files + " files, busy " + fetcher.busyMillis + "ms ("
+        + utilization + "%)");
+    }
+  }
+
+  private Item take() {
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for Perforce blame data", e);
+    }
+  }
+
+  private static RuntimeException propagate(Exception e) {
+    if (e instanceof RuntimeException) {
+      return (RuntimeException) e;
+    }
+    return new IllegalStateException(e.getLocalizedMessage(), e);
+  }
+
+  private static void join(Thread thread) {
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private class Fetcher implements Runnable {
+    private final Fetch fetch;
+    private final Queue<InputFile> pending;
+    private final AtomicInteger running;
+    private volatile long busyMillis;
+    private volatile int files;
+
+    Fetcher(Fetch fetch, Queue<InputFile> pending, AtomicInteger running) {
+      this.fetch = fetch;
+      this.pending = pending;
+      this.running = running;
+    }
+
+    @Override
+    public void run() {
+      try {
+        InputFile inputFile;
+        while (!cancelled && (inputFile = pending.poll()) != null) {
+          FileBlameData data;
+          long start;
+          if (limiter != null) {
+            limiter.acquire();
+          }
+          try {
+            start = System.currentTimeMillis();
+            data = fetch.fetch(inputFile);
+          } finally {
+            if (limiter != null) {
+              limiter.release();
+            }
+          }
+          long millis = System.currentTimeMillis() - start;
+          if (data != null && data.fromServer) {
+            // Blames read from a cache cost nothing, their duration says nothing of the next annotate
+            costs.record(inputFile, millis);
+          }
+          busyMillis += millis;
+          files++;
+          if (data != null) {
+            queue.put(new Item(inputFile, data, null));
+          }
+        }
+        if (running.decrementAndGet() == 0) {
+          queue.put(Item.END);
+        }
+      } catch (InterruptedException e) {
+        LOG.debug("Perforce blame fetch worker interrupted");
+      } catch (P4JavaException | RuntimeException e) {
+        cancelled = true;
+        fail(e);
+      }
+    }
+
+    private void fail(Exception e) {
+      try {
+        queue.put(new Item(null, null, e));
+      } catch (InterruptedException ie) {
+        LOG.debug("Perforce blame fetch worker interrupted", e);
+      }
+    }
+  }
+
+  private static class Item {
+    static final Item END = new Item(null, null, null);
+
+    @Nullable
+    final InputFile inputFile;
+    @Nullable
+    final FileBlameData data;
+    @Nullable
+    final Exception failure;
+
+    Item(@Nullable InputFile inputFile, @Nullable FileBlameData data, @Nullable Exception failure) {
+      this.inputFile = inputFile;
+      this.data = data;
+      this.failure = failure;
+    }
+  }
+}
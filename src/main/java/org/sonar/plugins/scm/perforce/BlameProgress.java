@@ -0,0 +1,250 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.ICommandCallback;
+
+/**
+ * Live progress of a blame, exposed through JMX as
+ * <code>org.sonar.plugins.scm.perforce:type=BlameProgress,project=&lt;base directory&gt;</code>.
+ */
+class BlameProgress implements BlameProgressMBean {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameProgress.class);
+
+  static final String DOMAIN = "org.sonar.plugins.scm.perforce";
+
+  private final AtomicInteger filesTotal = new AtomicInteger();
+  private final AtomicInteger filesDone = new AtomicInteger();
+  private final AtomicInteger cacheHits = new AtomicInteger();
+  private final List<CommandTracker> trackers = new CopyOnWriteArrayList<CommandTracker>();
+  private volatile long startNanos = System.nanoTime();
+  @CheckForNull
+  private ObjectName name;
+
+  /**
+   * @return the progress, registered in the platform MBean server if possible
+   */
+  static BlameProgress register(File baseDir) {
+    BlameProgress progress = new BlameProgress();
+    try {
+      ObjectName objectName = objectName(baseDir);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      server.registerMBean(progress, objectName);
+      progress.name = objectName;
+    } catch (JMException | RuntimeException e) {
+      LOG.debug("Unable to register blame progress MBean", e);
+    }
+    return progress;
+  }
+
+  static ObjectName objectName(File baseDir) throws JMException {
+    return new ObjectName(DOMAIN + ":type=BlameProgress,project=" + ObjectName.quote(baseDir.getAbsolutePath()));
+  }
+
+  void unregister() {
+    ObjectName objectName = name;
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      LOG.debug("Unable to unregister blame progress MBean", e);
+    }
+    name = null;
+  }
+
+  void start(Iterable<?> files) {
+    int total = 0;
+    if (files instanceof Collection) {
+      total = ((Collection<?>) files).size();
+    } else {
+      for (Object file : files) {
+        total++;
+      }
+    }
+    filesTotal.set(total);
+    filesDone.set(0);
+    startNanos = System.nanoTime();
+  }
+
+  void fileDone() {
+    filesDone.incrementAndGet();
+  }
+
+  void cacheHit() {
+    cacheHits.incrementAndGet();
+  }
+
+  /**
+   * @return a listener following the commands sent to the server, to register on its executor
+   */
+  ICommandCallback commandTracker(IOptionsServer server) {
+    CommandTracker tracker = new CommandTracker(server);
+    trackers.add(tracker);
+    return tracker;
+  }
+
+  @Override
+  public int getFilesTotal() {
+    return filesTotal.get();
+  }
+
+  @Override
+  public int getFilesDone() {
+    return filesDone.get();
+  }
+
+  @Override
+  public int getFilesRemaining() {
+    return Math.max(0, filesTotal.get() - filesDone.get());
+  }
+
+  @Override
+  public double getFilesPerSecond() {
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return seconds > 0 ? filesDone.get() / seconds : 0;
+  }
+
+  @Override
+  public long getEtaSeconds() {
+    double filesPerSecond = getFilesPerSecond();
+    return filesPerSecond > 0 ? Math.round(getFilesRemaining() / filesPerSecond) : -1;
+  }
+
+  @Override
+  @CheckForNull
+  public String getInFlightCommand() {
+    InFlight oldest = oldestInFlight();
+    return oldest != null ? oldest.command : null;
+  }
+
+  @Override
+  public long getInFlightCommandAgeMillis() {
+    InFlight oldest = oldestInFlight();
+    return oldest != null ? (System.nanoTime() - oldest.startNanos) / 1000000 : 0;
+  }
+
+  @CheckForNull
+  private InFlight oldestInFlight() {
+    InFlight oldest = null;
+    for (CommandTracker tracker : trackers) {
+      for (InFlight inFlight : tracker.running.values()) {
+        if (oldest == null || inFlight.startNanos < oldest.startNanos) {
+          oldest = inFlight;
+        }
+      }
+    }
+    return oldest;
+  }
+
+  @Override
+  public int getCacheHits() {
+    return cacheHits.get();
+  }
+
+  @Override
+  public double getCacheHitRate() {
+    int done = filesDone.get();
+    return done > 0 ? (double) cacheHits.get() / done : 0;
+  }
+
+  @Override
+  public String getConnectionState() {
+    int connected = 0;
+    for (CommandTracker tracker : trackers) {
+      if (tracker.server.isConnected()) {
+        connected++;
+      }
+    }
+    return connected + "/" + trackers.size() + " connected";
+  }
+
+  @VisibleForTesting
+  boolean isRegistered() {
+    return name != null;
+  }
+
+  private static class InFlight {
+    private final String command;
+    private final long startNanos = System.nanoTime();
+
+    InFlight(String command) {
+      this.command = command;
+    }
+  }
+
+  private static class CommandTracker implements ICommandCallback {
+    private final IOptionsServer server;
+    private final Map<Integer, InFlight> running = new ConcurrentHashMap<Integer, InFlight>();
+
+    CommandTracker(IOptionsServer server) {
+      this.server = server;
+    }
+
+    @Override
+    public void issuingServerCommand(int key, String command) {
+      running.put(key, new InFlight(command));
+    }
+
+    @Override
+    public void completedServerCommand(int key, long millisecsTaken) {
+      running.remove(key);
+    }
+
+    @Override
+    public void receivedServerMessage(int key, int genericCode, int severityCode, String message) {
+      // Not used
+    }
+
+    @Override
+    public void receivedServerInfoLine(int key, String infoLine) {
+      // Not used
+    }
+
+    @Override
+    public void receivedServerErrorLine(int key, String errorLine) {
+      // Not used
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+/**
+ * Progress of the blame of an analysis, registered in the platform MBean server while the blame runs, so that
+ * monitoring can tell a slow blame from a stalled one.
+ */
+public interface BlameProgressMBean {
+
+  int getFilesTotal();
+
+  int getFilesDone();
+
+  int getFilesRemaining();
+
+  double getFilesPerSecond();
+
+  /**
+   * @return estimated seconds until all files are blamed, -1 when unknown
+   */
+  long getEtaSeconds();
+
+  /**
+   * @return oldest command running on the Perforce service, <code>null</code> when none
+   */
+  String getInFlightCommand();
+
+  /**
+   * @return milliseconds since the oldest running command was sent, 0 when none
+   */
+  long getInFlightCommandAgeMillis();
+
+  /**
+   * @return files found in an index, snapshot, cache or journal instead of being annotated
+   */
+  int getCacheHits();
+
+  double getCacheHitRate();
+
+  /**
+   * @return number of connections to the Perforce service still connected, out of the connections opened
+   */
+  String getConnectionState();
+}
@@ -0,0 +1,211 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Blame of every file of a depot path at a given label or changelist, computed beforehand by
+ * {@link BlameSnapshotBuilder}.
+ * <p>
+ * The file starts with a dictionary of all the changelists referenced in the snapshot. Then, for each file, its depot
+ * path, its revision and the run-length encoded dictionary indices of its lines. Runs of a file are only decoded when
+ * it is blamed.
+ */
+class BlameSnapshot {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameSnapshot.class);
+
+  static final int MAGIC = 0x50344253;
+  static final int VERSION = 1;
+
+  private final String source;
+  private final int[] dictionary;
+  private final Map<Integer, BlameLine> linesByChangelistId;
+  private final Map<String, Entry> entries;
+
+  private BlameSnapshot(String source, int[] dictionary, Map<Integer, BlameLine> linesByChangelistId,
+    Map<String, Entry> entries) {
+    this.source = source;
+    this.dictionary = dictionary;
+    this.linesByChangelistId = linesByChangelistId;
+    this.entries = entries;
+  }
+
+  /**
+   * @return the snapshot, or <code>null</code> if it can't be read
+   */
+  @CheckForNull
+  static BlameSnapshot load(File file) {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        LOG.warn("Ignoring " + file + ": not a Perforce blame snapshot, or built by another version");
+        return null;
+      }
+      String source = in.readUTF();
+      int dictionarySize = BlameDataCodec.readSize(in);
+      int[] dictionary = new int[dictionarySize];
+      Map<Integer, BlameLine> linesByChangelistId = new HashMap<Integer, BlameLine>();
+      for (int i = 0; i < dictionarySize; i++) {
+        dictionary[i] = BlameDataCodec.readChangelist(in, linesByChangelistId);
+      }
+      int fileCount = BlameDataCodec.readVarInt(in);
+      if (fileCount < 0) {
+        throw new IOException("Invalid file count " + fileCount);
+      }
+      // The map grows with the entries actually read, not with a count that may be corrupted
+      Map<String, Entry> entries = new HashMap<String, Entry>();
+      for (int i = 0; i < fileCount; i++) {
+        String depotPath = in.readUTF();
+        int revision = BlameDataCodec.readVarInt(in);
+        byte[] runs = new byte[BlameDataCodec.readSize(in)];
+        in.readFully(runs);
+        entries.put(depotPath, new Entry(revision, runs));
+      }
+      LOG.info("Loaded Perforce blame snapshot of " + source + " (" + fileCount + " files)");
+      return new BlameSnapshot(source, dictionary, linesByChangelistId, entries);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Unable to read Perforce blame snapshot " + file, e);
+      return null;
+    }
+  }
+
+  String source() {
+    return source;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return blame of the file if the snapshot contains the requested revision, <code>null</code> otherwise
+   */
+  @CheckForNull
+  FileBlameData get(String depotPath, int revision) {
+    Entry entry = entries.get(depotPath);
+    if (entry == null || entry.revision != revision) {
+      return null;
+    }
+    try {
+      int[] changelistIds = BlameDataCodec.readRuns(new DataInputStream(new ByteArrayInputStream(entry.runs)));
+      for (int i = 0; i < changelistIds.length; i++) {
+        changelistIds[i] = dictionary[changelistIds[i]];
+      }
+      return new FileBlameData(changelistIds, linesByChangelistId);
+    } catch (IOException | ArrayIndexOutOfBoundsException e) {
+      LOG.debug("Corrupted snapshot entry for " + depotPath, e);
+      return null;
+    }
+  }
+
+  private static class Entry {
+    final int revision;
+    final byte[] runs;
+
+    Entry(int revision, byte[] runs) {
+      this.revision = revision;
+      this.runs = runs;
+    }
+  }
+
+  /**
+   * Accumulates blame of files, then writes the snapshot.
+   */
+  static class Writer {
+    private final String source;
+    private final Map<Integer, Integer> indexByChangelistId = new LinkedHashMap<Integer, Integer>();
+    private final Map<Integer, BlameLine> linesByChangelistId = new HashMap<Integer, BlameLine>();
+    private final List<String> depotPaths = new ArrayList<String>();
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    Writer(String source) {
+      this.source = source;
+    }
+
+    void add(String depotPath, int revision, FileBlameData data) {
+      int[] indices = new int[data.changelistIds.length];
+      for (int i = 0; i < indices.length; i++) {
+        int changelistId = data.changelistIds[i];
+        indices[i] = BlameDataCodec.index(indexByChangelistId, changelistId);
+        BlameLine line = data.linesByChangelistId.get(changelistId);
+        if (line != null) {
+          linesByChangelistId.put(changelistId, line);
+        }
+      }
+      ByteArrayOutputStream runs = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(runs)) {
+        BlameDataCodec.writeRuns(out, indices);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      depotPaths.add(depotPath);
+      entries.add(new Entry(revision, runs.toByteArray()));
+    }
+
+    void write(File file) throws IOException {
+      Path target = file.getAbsoluteFile().toPath();
+      Path tmp = Files.createTempFile(target.getParent(), file.getName(), ".tmp");
+      try {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeUTF(source);
+          BlameDataCodec.writeVarInt(out, indexByChangelistId.size());
+          for (Integer changelistId : indexByChangelistId.keySet()) {
+            BlameDataCodec.writeChangelist(out, changelistId, linesByChangelistId.get(changelistId));
+          }
+          BlameDataCodec.writeVarInt(out, entries.size());
+          for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            out.writeUTF(depotPaths.get(i));
+            BlameDataCodec.writeVarInt(out, entry.revision);
+            BlameDataCodec.writeVarInt(out, entry.runs.length);
+            out.write(entry.runs);
+          }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetDepotFilesOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Command-line tool building a {@link BlameSnapshot} of a depot path at a label or changelist. Connection settings
+ * are the plugin properties, given as system properties:
+ *
+ * <pre>
+ * java -Dsonar.perforce.port=perforce:1666 -Dsonar.perforce.username=scanner -cp &lt;classpath&gt; \
+ *   org.sonar.plugins.scm.perforce.BlameSnapshotBuilder //depot/project/...@REL_1_0 blame-REL_1_0.snapshot
+ * </pre>
+ *
+ * The classpath must also contain <code>sonar-plugin-api</code>, see the README.
+ * <p>
+ * Analyses configured with <code>sonar.perforce.blame.snapshot</code> then take blame of files whose have revision
+ * is in the snapshot from it, without annotating them.
+ */
+public class BlameSnapshotBuilder {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlameSnapshotBuilder.class);
+
+  private final IOptionsServer server;
+  private final PerforceBlameCommand command;
+
+  BlameSnapshotBuilder(IOptionsServer server, PerforceBlameCommand command) {
+    this.server = server;
+    this.command = command;
+  }
+
+  public static void main(String[] args) throws IOException, P4JavaException {
+    if (args.length != 2) {
+      System.err.println("Usage: BlameSnapshotBuilder <depot path>@<label or changelist> <output file>");
+      System.exit(1);
+    }
+    PerforceConfiguration config = new PerforceConfiguration(new SystemPropertiesConfiguration());
+    PerforceExecutor executor = new PerforceExecutor(config);
+    try {
+      new BlameSnapshotBuilder(executor.getServer(), new PerforceBlameCommand(config)).build(args[0])
+        .write(new File(args[1]));
+    } finally {
+      executor.clean();
+    }
+  }
+
+  BlameSnapshot.Writer build(String depotSpec) throws P4JavaException {
+    BlameSnapshot.Writer writer = new BlameSnapshot.Writer(depotSpec);
+    List<IFileSpec> files = server.getDepotFiles(FileSpecBuilder.makeFileSpecList(depotSpec),
+      new GetDepotFilesOptions());
+    int count = 0;
+    for (IFileSpec file : files) {
+      if (!FileSpecOpStatus.VALID.equals(file.getOpStatus()) || isDeleted(file.getAction())) {
+        continue;
+      }
+      String depotPath = file.getDepotPathString();
+      int revision = file.getEndRevision();
+      IFileSpec revisionSpec = new FileSpec(depotPath);
+      revisionSpec.setEndRevision(revision);
+      FileBlameData data = command.annotate(revisionSpec, depotPath, server,
+        PerforceBlameCommand.getFileAnnotationOptions());
+      if (data != null && data.complete) {
+        writer.add(depotPath, revision, data);
+        count++;
+      } else if (data != null) {
+        LOG.warn("Unable to resolve all the changelists of " + depotPath + ". Leaving it out of the snapshot.");
+      }
+    }
+    LOG.info("Blame snapshot of " + depotSpec + " contains " + count + " files");
+    return writer;
+  }
+
+  static boolean isDeleted(FileAction action) {
+    return action == FileAction.DELETE || action == FileAction.DELETED || action == FileAction.MOVE_DELETE;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.scm.BlameLine;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.exception.AccessException;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Blame line of the changelists fetched directly from the server, shared by all the blame threads.
+ * <p>
+ * Each changelist is fetched at most once: a thread asking for a changelist being fetched by another one waits for
+ * its result instead of sending the same command. Changelists the server does not know, for example because of
+ * cross-server imports, are remembered as such and not asked for again. A fetch failing for another reason, like the
+ * connection, a permission or a transient error, is not remembered but thrown, so that the next file asking for the
+ * changelist tries again and the blame of the current file is known to be incomplete.
+ */
+class ChangelistCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ChangelistCache.class);
+
+  /** Completed tasks hold the blame line of the changelist, or null if the server does not know it. */
+  private final ConcurrentMap<Integer, FutureTask<BlameLine>> entries = new ConcurrentHashMap<Integer, FutureTask<BlameLine>>();
+  private final AtomicInteger fetches = new AtomicInteger();
+
+  /**
+   * @return the blame line of the changelist, or <code>null</code> if the server does not know it
+   */
+  @CheckForNull
+  BlameLine get(IOptionsServer server, int changelistId) throws ConnectionException, AccessException,
+    RequestException {
+    FutureTask<BlameLine> task = entries.get(changelistId);
+    if (task == null) {
+      FutureTask<BlameLine> newTask = new FutureTask<BlameLine>(() -> fetch(server, changelistId));
+      task = entries.putIfAbsent(changelistId, newTask);
+      if (task == null) {
+        task = newTask;
+        fetches.incrementAndGet();
+        newTask.run();
+      }
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for changelist " + changelistId, e);
+    } catch (ExecutionException e) {
+      entries.remove(changelistId, task);
+      Throwable cause = e.getCause();
+      if (cause instanceof ConnectionException) {
+        throw (ConnectionException) cause;
+      }
+      if (cause instanceof AccessException) {
+        throw (AccessException) cause;
+      }
+      if (cause instanceof RequestException) {
+        throw (RequestException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  @CheckForNull
+  private static BlameLine fetch(IOptionsServer server, int changelistId) throws ConnectionException,
+    AccessException, RequestException {
+    IChangelist changelist;
+    try {
+      changelist = server.getChangelist(changelistId);
+    } catch (RequestException e) {
+      if (!isUnknown(e)) {
+        throw e;
+      }
+      LOG.debug("Changelist " + changelistId + " unknown to the server", e);
+      return null;
+    }
+    // sometimes even that can fail due to cross-server imports
+    if (changelist == null) {
+      return null;
+    }
+    return new BlameLine().revision(String.valueOf(changelistId)).date(changelist.getDate())
+      .author(changelist.getUsername());
+  }
+
+  private static boolean isUnknown(RequestException e) {
+    return e.getGenericCode() == MessageGenericCode.EV_UNKNOWN
+      || StringUtils.containsIgnoreCase(e.getMessage(), "unknown");
+  }
+
+  /**
+   * Number of changelists asked to the server.
+   */
+  @VisibleForTesting
+  int fetches() {
+    return fetches.get();
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.server.callback.ICommandCallback;
+
+/**
+ * Number and duration of the commands run on the Perforce service, by command. p4java does not expose the bytes
+ * exchanged by a command, so the duration is what tells which commands load the link or the server.
+ */
+class CommandStats {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CommandStats.class);
+
+  private final ConcurrentMap<String, long[]> totals = new ConcurrentHashMap<String, long[]>();
+
+  /**
+   * @return a listener counting the commands of one connection, to register on its executor. Command keys are only
+   *         unique within a connection
+   */
+  ICommandCallback forConnection() {
+    return new Counter();
+  }
+
+  @VisibleForTesting
+  void add(String command, long millis) {
+    long[] total = totals.computeIfAbsent(command, k -> new long[2]);
+    synchronized (total) {
+      total[0]++;
+      total[1] += millis;
+    }
+  }
+
+  /**
+   * @return number of commands and total milliseconds by command name
+   */
+  Map<String, long[]> totals() {
+    Map<String, long[]> copy = new TreeMap<String, long[]>();
+    for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+      synchronized (entry.getValue()) {
+        copy.put(entry.getKey(), entry.getValue().clone());
+      }
+    }
+    return copy;
+  }
+
+  void logSummary() {
+    for (Map.Entry<String, long[]> entry : totals().entrySet()) {
+      long[] total = entry.getValue();
+      LOG.info("Perforce " + entry.getKey() + ": " + total[0] + " commands, " + total[1] + " ms");
+    }
+  }
+
+  private class Counter implements ICommandCallback {
+    private final Map<Integer, String> started = new ConcurrentHashMap<Integer, String>();
+
+    @Override
+    public void issuingServerCommand(int key, String command) {
+      int space = command.indexOf(' ');
+      started.put(key, space > 0 ? command.substring(0, space) : command);
+    }
+
+    @Override
+    public void completedServerCommand(int key, long millisecsTaken) {
+      String command = started.remove(key);
+      if (command != null) {
+        add(command, millisecsTaken);
+      }
+    }
+
+    @Override
+    public void receivedServerMessage(int key, int genericCode, int severityCode, String message) {
+      // Not used
+    }
+
+    @Override
+    public void receivedServerInfoLine(int key, String infoLine) {
+      // Not used
+    }
+
+    @Override
+    public void receivedServerErrorLine(int key, String errorLine) {
+      // Not used
+    }
+  }
+}
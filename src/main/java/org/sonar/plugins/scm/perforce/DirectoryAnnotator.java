@@ -0,0 +1,230 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileAnnotation;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Blames all the files of a directory with one annotate and one filelog of <code>{directory}/*#have</code> instead of
+ * one of each per file, for directories where most files have to be blamed, typically on first analyses.
+ * <p>
+ * A directory is annotated as a whole when it holds at least {@link #MIN_FILES} files to blame, and these make up at
+ * least the configured share of the files of the local directory. The first worker asking for a file of the directory
+ * annotates it, others wait for its result. A directory whose annotate exceeds the limits of the user falls back to
+ * one annotate per file.
+ */
+class DirectoryAnnotator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DirectoryAnnotator.class);
+
+  static final int MIN_FILES = 4;
+
+  private final PerforceBlameCommand command;
+  /** Depot paths to blame, by depot directory annotated as a whole. */
+  private final Map<String, Set<String>> plannedPaths;
+  private final ConcurrentMap<String, FutureTask<Map<String, FileBlameData>>> directories = new ConcurrentHashMap<String, FutureTask<Map<String, FileBlameData>>>();
+
+  @VisibleForTesting
+  DirectoryAnnotator(PerforceBlameCommand command, Map<String, Set<String>> plannedPaths) {
+    this.command = command;
+    this.plannedPaths = plannedPaths;
+  }
+
+  /**
+   * Choose the directories to annotate as a whole.
+   *
+   * @param haveRevisions depot path and have revision of the files to blame
+   * @param thresholdPercent minimum share of the files of a directory to blame
+   */
+  static DirectoryAnnotator plan(PerforceBlameCommand command, Map<InputFile, IExtendedFileSpec> haveRevisions,
+    int thresholdPercent) {
+    Map<String, Set<String>> pathsByDirectory = new HashMap<String, Set<String>>();
+    Map<String, File> localDirectories = new HashMap<String, File>();
+    for (Map.Entry<InputFile, IExtendedFileSpec> entry : haveRevisions.entrySet()) {
+      IExtendedFileSpec haveRevision = entry.getValue();
+      URI uri = entry.getKey().uri();
+      String depotPath = haveRevision.getDepotPathString();
+      if (!FileSpecOpStatus.VALID.equals(haveRevision.getOpStatus()) || haveRevision.getHaveRev() <= 0
+        || depotPath == null || uri == null) {
+        continue;
+      }
+      String depotDirectory = directory(depotPath);
+      Set<String> paths = pathsByDirectory.get(depotDirectory);
+      if (paths == null) {
+        paths = new HashSet<String>();
+        pathsByDirectory.put(depotDirectory, paths);
+        localDirectories.put(depotDirectory, new File(uri).getParentFile());
+      }
+      paths.add(depotPath);
+    }
+
+    Map<String, Set<String>> plannedPaths = new HashMap<String, Set<String>>();
+    int files = 0;
+    for (Map.Entry<String, Set<String>> entry : pathsByDirectory.entrySet()) {
+      int toBlame = entry.getValue().size();
+      if (toBlame >= MIN_FILES
+        && 100L * toBlame >= (long) thresholdPercent * countFiles(localDirectories.get(entry.getKey()))) {
+        plannedPaths.put(entry.getKey(), entry.getValue());
+        files += toBlame;
+      }
+    }
+    if (!plannedPaths.isEmpty()) {
+      LOG.info("Blaming " + files + " files with one annotate per directory in " + plannedPaths.size()
+        + " directories");
+    }
+    return new DirectoryAnnotator(command, plannedPaths);
+  }
+
+  private static int countFiles(File directory) {
+    File[] files = directory.listFiles(File::isFile);
+    return files != null ? files.length : Integer.MAX_VALUE;
+  }
+
+  static String directory(String depotPath) {
+    int slash = depotPath.lastIndexOf('/');
+    return slash > 0 ? depotPath.substring(0, slash) : depotPath;
+  }
+
+  /**
+   * @return blame of the have revision of the file, or <code>null</code> if its directory is not annotated as a
+   *         whole, or the file was missing from the result of the directory
+   */
+  @CheckForNull
+  FileBlameData blame(String depotPath, IOptionsServer server) throws P4JavaException {
+    String directory = directory(depotPath);
+    Set<String> paths = plannedPaths.get(directory);
+    if (paths == null || !paths.contains(depotPath)) {
+      return null;
+    }
+    FutureTask<Map<String, FileBlameData>> task = directories.get(directory);
+    if (task == null) {
+      FutureTask<Map<String, FileBlameData>> newTask = new FutureTask<Map<String, FileBlameData>>(
+        () -> annotate(directory, paths, server));
+      task = directories.putIfAbsent(directory, newTask);
+      if (task == null) {
+        task = newTask;
+        newTask.run();
+      }
+    }
+    try {
+      // Each file is blamed once: release the memory as soon as it is taken
+      return task.get().remove(depotPath);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while annotating " + directory, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof P4JavaException) {
+        throw (P4JavaException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private Map<String, FileBlameData> annotate(String directory, Set<String> paths, IOptionsServer server)
+    throws P4JavaException {
+    Map<String, FileBlameData> result = new ConcurrentHashMap<String, FileBlameData>();
+    IFileSpec fileSpec = new FileSpec(directory + "/*");
+    fileSpec.setEndRevision(IFileSpec.HAVE_REVISION);
+    List<IFileSpec> fileSpecs = Collections.singletonList(fileSpec);
+
+    List<IFileAnnotation> annotations;
+    PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.ANNOTATE, directory);
+    try {
+      annotations = server.getFileAnnotations(fileSpecs, PerforceBlameCommand.getFileAnnotationOptions());
+    } catch (RequestException e) {
+      if (!BatchSizer.isLimitError(e.getMessage())) {
+        throw e;
+      }
+      LOG.info("Directory " + directory + " exceeds the limits of the Perforce user, annotating its files one by one");
+      return result;
+    } finally {
+      phase.end(0);
+    }
+    Map<String, List<Integer>> changelistIdsByPath = new HashMap<String, List<Integer>>();
+    for (IFileAnnotation annotation : annotations) {
+      String depotPath = annotation.getDepotPath();
+      if (depotPath == null || !paths.contains(depotPath)) {
+        continue;
+      }
+      List<Integer> changelistIds = changelistIdsByPath.get(depotPath);
+      if (changelistIds == null) {
+        changelistIds = new ArrayList<Integer>();
+        changelistIdsByPath.put(depotPath, changelistIds);
+      }
+      changelistIds.add(annotation.getLower());
+    }
+
+    Map<IFileSpec, List<IFileRevisionData>> history;
+    phase = PerforceEvents.begin(PerforceEvents.HISTORY, directory);
+    try {
+      history = server.getRevisionHistory(fileSpecs, PerforceBlameCommand.getRevisionHistoryOptions());
+    } finally {
+      phase.end(0);
+    }
+    for (Map.Entry<IFileSpec, List<IFileRevisionData>> entry : history.entrySet()) {
+      if (FileSpecOpStatus.VALID.equals(entry.getKey().getOpStatus()) && entry.getValue() != null) {
+        command.addHistory(entry.getValue());
+      }
+    }
+
+    for (Map.Entry<String, List<Integer>> entry : changelistIdsByPath.entrySet()) {
+      int[] changelistIds = new int[entry.getValue().size()];
+      for (int i = 0; i < changelistIds.length; i++) {
+        changelistIds[i] = entry.getValue().get(i);
+      }
+      result.put(entry.getKey(), command.blameData(entry.getKey(), server, changelistIds));
+    }
+    LOG.debug("Annotated " + result.size() + " files of " + directory);
+    return result;
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.Map;
+
+import org.sonar.api.batch.scm.BlameLine;
+
+/**
+ * Blame of one file before it is sent to SonarQube: the changelist of each line, and the blame line of every
+ * changelist that could be resolved.
+ */
+class FileBlameData {
+
+  final int[] changelistIds;
+  final Map<Integer, BlameLine> linesByChangelistId;
+  /** Whether the blame was computed by the server during this analysis, rather than read from a cache. */
+  final boolean fromServer;
+  /**
+   * Whether the server answered for every changelist. A blame with changelists left unresolved by a failed request
+   * is only sent to SonarQube, and never cached, indexed or journaled, so that the failure does not outlive it.
+   */
+  final boolean complete;
+
+  FileBlameData(int[] changelistIds, Map<Integer, BlameLine> linesByChangelistId) {
+    this(changelistIds, linesByChangelistId, false);
+  }
+
+  FileBlameData(int[] changelistIds, Map<Integer, BlameLine> linesByChangelistId, boolean fromServer) {
+    this(changelistIds, linesByChangelistId, fromServer, true);
+  }
+
+  FileBlameData(int[] changelistIds, Map<Integer, BlameLine> linesByChangelistId, boolean fromServer,
+    boolean complete) {
+    this.changelistIds = changelistIds;
+    this.linesByChangelistId = linesByChangelistId;
+    this.fromServer = fromServer;
+    this.complete = complete;
+  }
+}
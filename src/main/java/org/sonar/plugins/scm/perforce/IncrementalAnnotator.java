@@ -0,0 +1,247 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.scm.BlameLine;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetFileDiffsOptions;
+import com.perforce.p4java.option.server.GetRevisionHistoryOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Computes the blame of a new revision of a file from the blame of an older revision kept in the
+ * {@link LocalBlameCache}, and the diffs between consecutive revisions: lines added by a revision are attributed to its
+ * changelist, other lines keep their changelist. This avoids the server recomputing the whole history of the file.
+ * <p>
+ * Only plain edits are handled. When a revision in between is an integration, an add or a delete, or when too many
+ * revisions were submitted since the cached one, the blame has to be computed by the server.
+ */
+class IncrementalAnnotator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(IncrementalAnnotator.class);
+
+  /** Beyond this number of new revisions, a server annotate is cheaper than the diffs. */
+  static final int MAX_REVISIONS = 10;
+
+  static final Pattern RCS_COMMAND = Pattern.compile("([ad])(\\d+) (\\d+)");
+
+  private final LocalBlameCache localCache;
+
+  IncrementalAnnotator(LocalBlameCache localCache) {
+    this.localCache = localCache;
+  }
+
+  /**
+   * @return blame of the revision, or <code>null</code> if it can't be computed incrementally
+   */
+  @CheckForNull
+  FileBlameData blame(String depotPath, int revision, IOptionsServer server) throws P4JavaException {
+    LocalBlameCache.RevisionBlame base = localCache.get(depotPath);
+    if (base == null || base.revision > revision) {
+      return null;
+    }
+    if (base.revision == revision) {
+      return base.data;
+    }
+    if (revision - base.revision > MAX_REVISIONS) {
+      LOG.debug(depotPath + ": " + (revision - base.revision) + " new revisions, incremental blame not worth it");
+      return null;
+    }
+
+    Map<Integer, IFileRevisionData> newRevisions = newRevisions(depotPath, base.revision, revision, server);
+    if (newRevisions == null) {
+      return null;
+    }
+
+    int[] changelistIds = base.data.changelistIds;
+    Map<Integer, BlameLine> linesByChangelistId = new HashMap<Integer, BlameLine>(base.data.linesByChangelistId);
+    for (int rev = base.revision + 1; rev <= revision; rev++) {
+      IFileRevisionData revisionData = newRevisions.get(rev);
+      int changelistId = revisionData.getChangelistId();
+      try (InputStream diff = server.getFileDiffsStream(revisionSpec(depotPath, rev - 1), revisionSpec(depotPath, rev),
+        null, getFileDiffsOptions())) {
+        changelistIds = applyRcsDiff(changelistIds, new InputStreamReader(diff, StandardCharsets.ISO_8859_1),
+          changelistId);
+      } catch (IOException e) {
+        LOG.debug("Unable to apply diff of " + depotPath + "#" + rev, e);
+        return null;
+      }
+      linesByChangelistId.put(changelistId, new BlameLine().revision(String.valueOf(changelistId))
+        .date(revisionData.getDate()).author(revisionData.getUserName()));
+    }
+    LOG.debug("Blame of " + depotPath + "#" + revision + " computed incrementally from #" + base.revision);
+    return new FileBlameData(changelistIds, linesByChangelistId, true);
+  }
+
+  void record(String depotPath, int revision, FileBlameData data) {
+    localCache.put(depotPath, revision, data);
+  }
+
+  /**
+   * Revisions submitted after the base revision, if they are all plain edits.
+   */
+  @CheckForNull
+  private static Map<Integer, IFileRevisionData> newRevisions(String depotPath, int baseRevision, int revision,
+    IOptionsServer server) throws P4JavaException {
+    IFileSpec range = new FileSpec(depotPath);
+    range.setStartRevision(baseRevision + 1);
+    range.setEndRevision(revision);
+    Map<IFileSpec, List<IFileRevisionData>> history = server.getRevisionHistory(Collections.singletonList(range),
+      new GetRevisionHistoryOptions());
+    Map<Integer, IFileRevisionData> result = new HashMap<Integer, IFileRevisionData>();
+    for (List<IFileRevisionData> revisions : history.values()) {
+      if (revisions == null) {
+        continue;
+      }
+      for (IFileRevisionData revisionData : revisions) {
+        if (!isPlainEdit(revisionData)) {
+          LOG.debug(depotPath + "#" + revisionData.getRevision() + " is not a plain edit, incremental blame not possible");
+          return null;
+        }
+        result.put(revisionData.getRevision(), revisionData);
+      }
+    }
+    for (int rev = baseRevision + 1; rev <= revision; rev++) {
+      if (!result.containsKey(rev)) {
+        return null;
+      }
+    }
+    return result;
+  }
+
+  private static boolean isPlainEdit(IFileRevisionData revisionData) {
+    return revisionData.getAction() == FileAction.EDIT
+      && (revisionData.getRevisionIntegrationData() == null || revisionData.getRevisionIntegrationData().isEmpty())
+      && (revisionData.getFileType() == null || !revisionData.getFileType().contains("binary"));
+  }
+
+  /**
+   * Apply a diff in RCS format (<code>p4 diff2 -dn</code>) to the changelists of the lines of the old revision.
+   * Commands refer to line numbers of the old revision: <code>dL N</code> deletes N lines starting at line L, and
+   * <code>aL N</code> adds the N following lines after line L. Lines are only ended by <code>\n</code>, since added
+   * lines may contain a lone <code>\r</code>.
+   *
+   * @param changelistId changelist of the new revision, given to added lines
+   */
+  static int[] applyRcsDiff(int[] oldLines, Reader diff, int changelistId) throws IOException {
+    BufferedReader reader = new BufferedReader(diff);
+    int[] result = new int[oldLines.length];
+    int size = 0;
+    int oldPosition = 0;
+    String line;
+    while ((line = readLine(reader)) != null) {
+      if (line.startsWith("====")) {
+        continue;
+      }
+      Matcher matcher = RCS_COMMAND.matcher(line);
+      if (!matcher.matches()) {
+        throw new IOException("Unexpected diff line: " + line);
+      }
+      int lineNumber = Integer.parseInt(matcher.group(2));
+      int count = Integer.parseInt(matcher.group(3));
+      boolean delete = "d".equals(matcher.group(1));
+      // Lines of the old revision before the command are unchanged
+      int unchangedUntil = delete ? lineNumber - 1 : lineNumber;
+      if (unchangedUntil < oldPosition || unchangedUntil > oldLines.length) {
+        throw new IOException("Diff does not match blamed revision: " + line);
+      }
+      result = ensureCapacity(result, size + (unchangedUntil - oldPosition) + (delete ? 0 : count));
+      System.arraycopy(oldLines, oldPosition, result, size, unchangedUntil - oldPosition);
+      size += unchangedUntil - oldPosition;
+      oldPosition = unchangedUntil;
+      if (delete) {
+        if (oldPosition + count > oldLines.length) {
+          throw new IOException("Diff does not match blamed revision: " + line);
+        }
+        oldPosition += count;
+      } else {
+        for (int i = 0; i < count; i++) {
+          if (readLine(reader) == null) {
+            throw new IOException("Truncated diff");
+          }
+          result[size++] = changelistId;
+        }
+      }
+    }
+    result = ensureCapacity(result, size + oldLines.length - oldPosition);
+    System.arraycopy(oldLines, oldPosition, result, size, oldLines.length - oldPosition);
+    size += oldLines.length - oldPosition;
+    int[] trimmed = new int[size];
+    System.arraycopy(result, 0, trimmed, 0, size);
+    return trimmed;
+  }
+
+  @CheckForNull
+  private static String readLine(Reader reader) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = reader.read()) != -1 && c != '\n') {
+      line.append((char) c);
+    }
+    return c == -1 && line.length() == 0 ? null : line.toString();
+  }
+
+  private static int[] ensureCapacity(int[] array, int capacity) {
+    if (array.length >= capacity) {
+      return array;
+    }
+    int[] grown = new int[Math.max(capacity, array.length * 2)];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  private static IFileSpec revisionSpec(String depotPath, int revision) {
+    IFileSpec fileSpec = new FileSpec(depotPath);
+    fileSpec.setEndRevision(revision);
+    return fileSpec;
+  }
+
+  /**
+   * Diff options matching the whitespace handling of the annotate options.
+   */
+  private static GetFileDiffsOptions getFileDiffsOptions() {
+    GetFileDiffsOptions options = new GetFileDiffsOptions();
+    options.setRcsDiffs(true);
+    options.setIgnoreWhitespaceChanges(PerforceBlameCommand.getFileAnnotationOptions().isIgnoreWhitespaceChanges());
+    return options;
+  }
+}
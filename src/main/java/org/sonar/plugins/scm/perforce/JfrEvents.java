@@ -0,0 +1,98 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import javax.annotation.Nullable;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events, only loaded by {@link PerforceEvents} when the JVM provides the <code>jdk.jfr</code> API.
+ */
+final class JfrEvents {
+
+  /** File of the phase running on each thread, attached to the commands it sends. */
+  private static final ThreadLocal<String> CURRENT_PATH = new ThreadLocal<String>();
+
+  private JfrEvents() {
+  }
+
+  static PerforceEvents.Phase beginPhase(String phase, @Nullable String path) {
+    BlamePhaseEvent event = new BlamePhaseEvent();
+    if (!event.isEnabled()) {
+      return lines -> {
+      };
+    }
+    String previousPath = CURRENT_PATH.get();
+    CURRENT_PATH.set(path);
+    event.phase = phase;
+    event.path = path;
+    event.begin();
+    return lines -> {
+      CURRENT_PATH.set(previousPath);
+      event.lines = lines;
+      event.commit();
+    };
+  }
+
+  static PerforceEvents.Command beginCommand(String command) {
+    PerforceCommandEvent event = new PerforceCommandEvent();
+    if (!event.isEnabled()) {
+      return () -> {
+      };
+    }
+    event.command = command;
+    event.path = CURRENT_PATH.get();
+    event.begin();
+    return event::commit;
+  }
+
+  @Name("org.sonar.plugins.scm.perforce.Command")
+  @Label("Perforce Command")
+  @Description("Command sent to the Perforce server")
+  @Category({"SonarQube", "Perforce"})
+  static class PerforceCommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Path")
+    @Description("File blamed by the thread sending the command")
+    String path;
+  }
+
+  @Name("org.sonar.plugins.scm.perforce.BlamePhase")
+  @Label("Perforce Blame Phase")
+  @Description("Phase of the connection to the Perforce server or of the blame of a file")
+  @Category({"SonarQube", "Perforce"})
+  static class BlamePhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Path")
+    String path;
+
+    @Label("Lines")
+    int lines;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Blame of the last revision of each depot file blamed on this machine, kept between analyses in a directory with
+ * one file per depot path. Used as the starting point of {@link IncrementalAnnotator}.
+ */
+class LocalBlameCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalBlameCache.class);
+
+  private final File directory;
+
+  LocalBlameCache(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return last blamed revision of the file, or <code>null</code> if it was never blamed
+   */
+  @CheckForNull
+  RevisionBlame get(String depotPath) {
+    File file = file(depotPath);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      if (!depotPath.equals(in.readUTF())) {
+        return null;
+      }
+      int revision = BlameDataCodec.readVarInt(in);
+      return new RevisionBlame(revision, BlameDataCodec.read(in));
+    } catch (IOException e) {
+      LOG.debug("Unable to read cached blame of " + depotPath, e);
+      return null;
+    }
+  }
+
+  void put(String depotPath, int revision, FileBlameData data) {
+    try {
+      Files.createDirectories(directory.toPath());
+      Path target = file(depotPath).toPath();
+      Path tmp = Files.createTempFile(directory.toPath(), target.getFileName().toString(), ".tmp");
+      try {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+          out.writeUTF(depotPath);
+          BlameDataCodec.writeVarInt(out, revision);
+          BlameDataCodec.write(out, data);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to cache blame of " + depotPath, e);
+    }
+  }
+
+  private File file(String depotPath) {
+    return new File(directory, RemoteBlameCache.sha1Hex(depotPath) + ".blame");
+  }
+
+  /**
+   * Blame of a given revision of a file.
+   */
+  static class RevisionBlame {
+    final int revision;
+    final FileBlameData data;
+
+    RevisionBlame(int revision, FileBlameData data) {
+      this.revision = revision;
+      this.data = data;
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+
+/**
+ * Finds the files edited locally since they were synced, by comparing the MD5 digest of their content with the
+ * digest of their have revision reported by fstat. The blame of the have revision does not match the lines of these
+ * files, so they are not blamed.
+ * <p>
+ * Files are read through memory mapping and hashed in parallel. The server digests text files with LF line endings,
+ * so a text file whose raw digest differs is hashed again with CRLF read as LF before being reported as modified.
+ * Files whose digest can not be compared, such as files with expanded keywords or stored as UTF-16, are considered
+ * unmodified.
+ */
+class LocalChangeDetector {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalChangeDetector.class);
+
+  private static final int MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private LocalChangeDetector() {
+  }
+
+  /**
+   * @param haveRevisions result of fstat with digests of each file
+   * @return files whose content differs from their have revision
+   */
+  static Set<InputFile> modifiedFiles(Map<InputFile, IExtendedFileSpec> haveRevisions) {
+    return haveRevisions.entrySet().parallelStream()
+      .filter(entry -> isModified(entry.getKey(), entry.getValue()))
+      .map(Map.Entry::getKey)
+      .collect(Collectors.toSet());
+  }
+
+  @VisibleForTesting
+  static boolean isModified(InputFile inputFile, IExtendedFileSpec haveRevision) {
+    String digest = haveRevision.getDigest();
+    URI uri = inputFile.uri();
+    if (!FileSpecOpStatus.VALID.equals(haveRevision.getOpStatus()) || digest == null || uri == null
+      || !isComparable(haveRevision.getHeadType())) {
+      return false;
+    }
+    try {
+      Path path = Paths.get(uri);
+      if (digest.equalsIgnoreCase(md5Hex(path, false))) {
+        return false;
+      }
+      if (isText(haveRevision.getHeadType()) && digest.equalsIgnoreCase(md5Hex(path, true))) {
+        return false;
+      }
+      LOG.debug("File " + inputFile + " is modified locally");
+      return true;
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Unable to compute digest of " + inputFile, e);
+      return false;
+    }
+  }
+
+  /**
+   * Whether the local content of files of this type is the content digested by the server.
+   */
+  @VisibleForTesting
+  static boolean isComparable(@Nullable String fileType) {
+    if (fileType == null) {
+      return false;
+    }
+    String type = fileType.toLowerCase(Locale.ENGLISH);
+    int plus = type.indexOf('+');
+    String base = plus < 0 ? type : type.substring(0, plus);
+    String modifiers = plus < 0 ? "" : type.substring(plus + 1);
+    return !base.startsWith("k") && !modifiers.contains("k") && !base.contains("utf16") && !base.contains("unicode")
+      && !"symlink".equals(base);
+  }
+
+  private static boolean isText(@CheckForNull String fileType) {
+    return fileType != null && fileType.toLowerCase(Locale.ENGLISH).contains("text");
+  }
+
+  /**
+   * MD5 of the content of a file, in the upper case hexadecimal form used by the server.
+   *
+   * @param normalizeLineEndings read CRLF as LF
+   */
+  @VisibleForTesting
+  static String md5Hex(Path path, boolean normalizeLineEndings) throws IOException {
+    MessageDigest md5 = md5();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      boolean pendingCr = false;
+      for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+          Math.min(MAP_CHUNK_SIZE, size - position));
+        if (normalizeLineEndings) {
+          pendingCr = updateNormalized(md5, buffer, pendingCr);
+        } else {
+          md5.update(buffer);
+        }
+      }
+      if (pendingCr) {
+        md5.update((byte) '\r');
+      }
+    }
+    byte[] bytes = md5.digest();
+    char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      hex[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      hex[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(hex);
+  }
+
+  /**
+   * @return whether the buffer ends with a CR not yet digested, as it may be followed by LF in the next buffer
+   */
+  private static boolean updateNormalized(MessageDigest md5, ByteBuffer buffer, boolean pendingCr) {
+    byte[] out = new byte[8192];
+    int length = 0;
+    boolean cr = pendingCr;
+    while (buffer.hasRemaining()) {
+      if (length >= out.length - 1) {
+        md5.update(out, 0, length);
+        length = 0;
+      }
+      byte b = buffer.get();
+      if (cr && b != '\n') {
+        out[length++] = '\r';
+      }
+      cr = b == '\r';
+      if (!cr) {
+        out[length++] = b;
+      }
+    }
+    md5.update(out, 0, length);
+    return cr;
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
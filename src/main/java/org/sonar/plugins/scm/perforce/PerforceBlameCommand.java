@@ -19,15 +19,24 @@
  */
 package org.sonar.plugins.scm.perforce;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,8 +46,9 @@ import org.sonar.api.batch.scm.BlameCommand;
 import org.sonar.api.batch.scm.BlameLine;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.perforce.p4java.core.IChangelist;
 import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.FileStatAncilliaryOptions;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.core.file.IFileAnnotation;
 import com.perforce.p4java.core.file.IFileRevisionData;
 import com.perforce.p4java.core.file.IFileSpec;
@@ -47,92 +57,756 @@ import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.exception.RequestException;
 import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetExtendedFilesOptions;
 import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
 import com.perforce.p4java.option.server.GetRevisionHistoryOptions;
 import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.IServerInfo;
 
 public class PerforceBlameCommand extends BlameCommand {
 
+    /** Number of changelists of file histories remembered, the least recently used ones are forgotten first. */
+    static final int MAX_HISTORY_CHANGELISTS = 100000;
+    /** Maximum number of revisions of a file fetched by filelog. */
+    static final int MAX_HISTORY_REVISIONS = 1000;
+
     private static final Logger LOG = LoggerFactory.getLogger(PerforceBlameCommand.class);
     private final PerforceConfiguration config;
-    private final Map<Integer, IFileRevisionData> revisionDataByChangelistId = new HashMap<Integer, IFileRevisionData>();
-    private final Map<Integer, IChangelist> changelistCache = new HashMap<Integer, IChangelist>();
+    private final Map<Integer, IFileRevisionData> revisionDataByChangelistId = Collections.synchronizedMap(
+	    new LinkedHashMap<Integer, IFileRevisionData>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, IFileRevisionData> eldest) {
+		    return size() > MAX_HISTORY_CHANGELISTS;
+		}
+	    });
+    private final ChangelistCache changelistCache = new ChangelistCache();
+    @Nullable
+    private volatile RemoteBlameCache remoteCache;
+    /** Identity of the Perforce server in the keys of the remote cache, read once per analysis. */
+    private volatile String serverId;
+    @Nullable
+    private volatile LocalBlameCache index;
+    @Nullable
+    private volatile BlameSnapshot snapshot;
+    @Nullable
+    private volatile IncrementalAnnotator incrementalAnnotator;
+    @Nullable
+    private volatile AuthorResolver authorResolver;
+    /** Result of fstat for each file to blame, fetched in batches before the blame starts. */
+    @Nullable
+    private volatile Map<InputFile, IExtendedFileSpec> haveRevisions;
+    @Nullable
+    private volatile DirectoryAnnotator directoryAnnotator;
+    @Nullable
+    private volatile AnnotateStrategy annotateStrategy;
+    @Nullable
+    private volatile BlameProgress progress;
 
     public PerforceBlameCommand(PerforceConfiguration config) {
 	this.config = config;
     }
     @Override
     public void blame(BlameInput input, BlameOutput output) {
+      BlameProgress currentProgress = BlameProgress.register(input.fileSystem().baseDir());
+      progress = currentProgress;
+      try {
+        blameFiles(input, output);
+      } finally {
+        progress = null;
+        currentProgress.unregister();
+      }
+    }
+
+    private void blameFiles(BlameInput input, BlameOutput output) {
       FileSystem fs = input.fileSystem();
       LOG.debug("Working directory: " + fs.baseDir().getAbsolutePath());
-      PerforceExecutor executor = new PerforceExecutor(config, fs.baseDir());
+      Integer agentPort = config.blameAgentPort();
+      if (agentPort != null && config.clientName() != null) {
+        BlameAgentClient agent = BlameAgentClient.connect(agentPort, config.clientName(),
+          BlameAgent.tokenFile(config, agentPort), config.sockSoTimeout(), config.blameAgentTimeout(),
+          config.blameThreads());
+        if (agent != null) {
+          blameWithAgent(input, output, agent);
+          return;
+        }
+      }
+      List<PerforceExecutor> executors = new ArrayList<PerforceExecutor>();
+      String cacheUrl = config.blameCacheUrl();
+      if (cacheUrl != null) {
+        remoteCache = new RemoteBlameCache(cacheUrl, config.sockSoTimeout());
+      }
+      String indexPath = config.blameIndex();
+      if (indexPath != null) {
+        File indexDir = new File(indexPath);
+        LOG.info("Using blame index " + indexDir + ", up to date until changelist " + BlameIndexer.readCounter(indexDir));
+        index = new LocalBlameCache(indexDir);
+      }
+      String snapshotPath = config.blameSnapshot();
+      if (snapshotPath != null) {
+        snapshot = BlameSnapshot.load(new File(snapshotPath));
+      }
+      String incrementalCacheDir = config.blameIncrementalCacheDir();
+      if (incrementalCacheDir != null) {
+        incrementalAnnotator = new IncrementalAnnotator(new LocalBlameCache(new File(incrementalCacheDir)));
+      }
+      AdaptiveConcurrencyLimiter limiter = config.blameAdaptiveConcurrency() && config.blameThreads() > 1
+        ? new AdaptiveConcurrencyLimiter(config.blameThreads()) : null;
+      CommandStats commandStats = new CommandStats();
+      TraceRecorder recorder = null;
       try {
-        for (InputFile inputFile : input.filesToBlame()) {
-          blame(inputFile, executor.getServer(), output);
+        String trace = config.trace();
+        if (trace != null) {
+          recorder = TraceRecorder.open(new File(trace), config.traceAnonymize());
+        }
+        List<IOptionsServer> servers = new ArrayList<IOptionsServer>();
+        for (int i = 0; i < config.blameThreads(); i++) {
+          PerforceExecutor executor = new PerforceExecutor(config, fs.baseDir());
+          if (limiter != null) {
+            executor.addCallback(limiter.forConnection());
+          }
+          BlameProgress currentProgress = progress;
+          if (currentProgress != null) {
+            executor.addCallback(currentProgress.commandTracker(executor.getServer()));
+          }
+          executor.addCallback(commandStats.forConnection());
+          if (recorder != null) {
+            executor.recordTo(recorder);
+          }
+          executors.add(executor);
+          servers.add(executor.getServer());
         }
+        File stateDir = StateDirectory.of(config, fs.baseDir());
+        authorResolver = AuthorResolver.create(config, servers.get(0), stateDir);
+        Iterable<InputFile> filesToBlame = input.filesToBlame();
+        boolean detectLocalChanges = config.blameDetectLocalChanges();
+        int directoryThreshold = config.blameDirectoryThreshold();
+        if (detectLocalChanges || directoryThreshold > 0 || index != null || snapshot != null || remoteCache != null
+          || incrementalAnnotator != null) {
+          haveRevisions = prefetchHaveRevisions(filesToBlame, servers.get(0), BatchSizer.forUser(servers.get(0)),
+            detectLocalChanges);
+        }
+        if (detectLocalChanges) {
+          filesToBlame = withoutLocalChanges(filesToBlame, haveRevisions);
+        }
+        if (directoryThreshold > 0) {
+          directoryAnnotator = DirectoryAnnotator.plan(this, haveRevisions, directoryThreshold);
+        }
+        if (config.blameAdaptiveAnnotate()) {
+          annotateStrategy = new AnnotateStrategy();
+        }
+        List<BlamePipeline.Fetch> fetches = new ArrayList<BlamePipeline.Fetch>();
+        for (IOptionsServer server : servers) {
+          fetches.add(inputFile -> fetch(inputFile, server));
+        }
+        run(fetches, limiter, filesToBlame, output, stateDir);
+        if (annotateStrategy != null) {
+          annotateStrategy.logSummary();
+        }
+        commandStats.logSummary();
       } catch (P4JavaException e) {
         throw new IllegalStateException(e.getLocalizedMessage(), e);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to record Perforce trace to " + config.trace(), e);
       } finally {
-        executor.clean();
+        for (PerforceExecutor executor : executors) {
+          executor.clean();
+        }
+        if (recorder != null) {
+          try {
+            recorder.close();
+          } catch (IOException e) {
+            LOG.warn("Unable to complete Perforce trace " + config.trace(), e);
+          }
+        }
+        if (remoteCache != null) {
+          remoteCache.close();
+          remoteCache = null;
+          serverId = null;
+        }
+        index = null;
+        snapshot = null;
+        incrementalAnnotator = null;
+        authorResolver = null;
+        haveRevisions = null;
+        directoryAnnotator = null;
+        annotateStrategy = null;
       }
     }
-    
+
+    /**
+     * Blame through the local agent, which has its own connections and caches. A file the agent fails to blame is
+     * blamed directly, each blame thread connecting to Perforce the first time it needs to.
+     */
+    private void blameWithAgent(BlameInput input, BlameOutput output, BlameAgentClient agent) {
+      LOG.info("Using blame agent on port " + config.blameAgentPort());
+      File baseDir = input.fileSystem().baseDir();
+      File stateDir = StateDirectory.of(config, baseDir);
+      List<PerforceExecutor> executors = Collections.synchronizedList(new ArrayList<PerforceExecutor>());
+      try {
+        authorResolver = AuthorResolver.create(config, agent::users, stateDir);
+        List<BlamePipeline.Fetch> fetches = new ArrayList<BlamePipeline.Fetch>();
+        for (int i = 0; i < config.blameThreads(); i++) {
+          AtomicReference<PerforceExecutor> direct = new AtomicReference<PerforceExecutor>();
+          fetches.add(inputFile -> {
+            try {
+              return agent.fetch(inputFile);
+            } catch (IOException e) {
+              LOG.warn("Blame agent failed to blame " + inputFile + ", blaming it directly: " + e.getMessage());
+              PerforceExecutor executor = direct.get();
+              if (executor == null) {
+                executor = new PerforceExecutor(config, baseDir);
+                executors.add(executor);
+                direct.set(executor);
+              }
+              return fetch(inputFile, executor.getServer());
+            }
+          });
+        }
+        run(fetches, null, input.filesToBlame(), output, stateDir);
+      } catch (P4JavaException e) {
+        throw new IllegalStateException(e.getLocalizedMessage(), e);
+      } finally {
+        agent.close();
+        for (PerforceExecutor executor : executors) {
+          executor.clean();
+        }
+        authorResolver = null;
+      }
+    }
+
+    /**
+     * Run the blame pipeline. When blame is resumable, files blamed by a previous attempt that failed are replayed
+     * from the journal, and the others are recorded in it as they are fetched.
+     */
+    private void run(List<BlamePipeline.Fetch> fetches, @Nullable AdaptiveConcurrencyLimiter limiter,
+	    Iterable<InputFile> filesToBlame, BlameOutput output, File stateDir) {
+	BlameJournal journal = null;
+	if (config.blameResumable()) {
+	    try {
+		journal = BlameJournal.open(stateDir);
+	    } catch (IOException e) {
+		LOG.warn("Unable to open blame journal, blame will not be resumable", e);
+	    }
+	}
+	BlameProgress currentProgress = progress;
+	if (currentProgress != null) {
+	    currentProgress.start(filesToBlame);
+	}
+	List<BlamePipeline.Fetch> tracked = new ArrayList<BlamePipeline.Fetch>();
+	for (BlamePipeline.Fetch fetch : fetches) {
+	    tracked.add(tracked(journal != null ? journaled(fetch, journal, currentProgress) : fetch, currentProgress));
+	}
+	try {
+	    new BlamePipeline(this, tracked, limiter, output, BlameCosts.load(stateDir)).run(filesToBlame);
+	    if (journal != null) {
+		journal.complete();
+	    }
+	} catch (IOException e) {
+	    LOG.debug("Unable to delete blame journal", e);
+	} finally {
+	    if (journal != null) {
+		closeQuietly(journal);
+	    }
+	}
+    }
+
+    private static BlamePipeline.Fetch journaled(BlamePipeline.Fetch fetch, BlameJournal journal,
+	    @Nullable BlameProgress progress) {
+	return inputFile -> {
+	    FileBlameData data = journal.replay(inputFile);
+	    if (data != null) {
+		if (progress != null) {
+		    progress.cacheHit();
+		}
+		return data;
+	    }
+	    data = fetch.fetch(inputFile);
+	    if (data != null && data.complete) {
+		try {
+		    journal.append(inputFile, data);
+		} catch (IOException e) {
+		    LOG.debug("Unable to record blame of " + inputFile + " in journal", e);
+		}
+	    }
+	    return data;
+	};
+    }
+
+    private void cacheHit() {
+	BlameProgress currentProgress = progress;
+	if (currentProgress != null) {
+	    currentProgress.cacheHit();
+	}
+    }
+
+    private static BlamePipeline.Fetch tracked(BlamePipeline.Fetch fetch, @Nullable BlameProgress progress) {
+	if (progress == null) {
+	    return fetch;
+	}
+	return inputFile -> {
+	    try {
+		return fetch.fetch(inputFile);
+	    } finally {
+		progress.fileDone();
+	    }
+	};
+    }
+
+    private static void closeQuietly(BlameJournal journal) {
+	try {
+	    journal.close();
+	} catch (IOException e) {
+	    LOG.debug("Unable to close blame journal", e);
+	}
+    }
 
     @VisibleForTesting
     void blame(InputFile inputFile, IOptionsServer server, BlameOutput output) throws P4JavaException {
+	FileBlameData data = fetch(inputFile, server);
+	if (data != null) {
+	    emit(inputFile, data, output);
+	}
+    }
+
+    /**
+     * Network stage of the blame of a file: snapshot and cache lookups, or annotate, filelog and fetch of the
+     * changelists missing from history.
+     *
+     * @return data needed to build the blame, or <code>null</code> if the file has to be skipped
+     */
+    @CheckForNull
+    FileBlameData fetch(InputFile inputFile, IOptionsServer server) throws P4JavaException {
 	IFileSpec fileSpec = createFileSpec(inputFile);
+	GetFileAnnotationsOptions annotationOptions = getFileAnnotationOptions();
+	LocalBlameCache currentIndex = index;
+	BlameSnapshot currentSnapshot = snapshot;
+	RemoteBlameCache cache = remoteCache;
+	IncrementalAnnotator incremental = incrementalAnnotator;
+	DirectoryAnnotator directories = directoryAnnotator;
+	AnnotateStrategy strategy = annotateStrategy;
+	IExtendedFileSpec haveRevision = null;
+	if (currentIndex != null || currentSnapshot != null || cache != null || incremental != null
+		|| directories != null) {
+	    Map<InputFile, IExtendedFileSpec> prefetched = haveRevisions;
+	    IExtendedFileSpec extendedFile = prefetched != null ? prefetched.get(inputFile) : null;
+	    haveRevision = extendedFile != null ? validHaveRevision(extendedFile) : haveRevision(server, fileSpec);
+	}
+
+	// Look for a blame computed beforehand, at the same revision
+	if (currentIndex != null && haveRevision != null) {
+	    LocalBlameCache.RevisionBlame indexed = currentIndex.get(haveRevision.getDepotPathString());
+	    if (indexed != null && indexed.revision == haveRevision.getHaveRev()) {
+		LOG.debug("Blame of " + inputFile + " found in index");
+		cacheHit();
+		return indexed.data;
+	    }
+	}
+	if (currentSnapshot != null && haveRevision != null) {
+	    FileBlameData precomputed = currentSnapshot.get(haveRevision.getDepotPathString(),
+		    haveRevision.getHaveRev());
+	    if (precomputed != null) {
+		LOG.debug("Blame of " + inputFile + " found in snapshot");
+		cacheHit();
+		return precomputed;
+	    }
+	}
+	String cacheKey = null;
+	if (cache != null && haveRevision != null) {
+	    cacheKey = RemoteBlameCache.key(serverId(server), haveRevision.getDepotPathString(),
+		    haveRevision.getHaveRev(), describe(annotationOptions));
+	    FileBlameData cached = cache.get(cacheKey, inputFile);
+	    if (cached == null && strategy != null && AnnotateStrategy.canAnnotatePlainly(annotationOptions)) {
+		// The blame is stored under the options the file was annotated with, which depend on its history
+		String plainKey = RemoteBlameCache.key(serverId(server), haveRevision.getDepotPathString(),
+			haveRevision.getHaveRev(), describe(AnnotateStrategy.withoutBranches(annotationOptions)));
+		cached = cache.get(plainKey, inputFile);
+	    }
+	    if (cached != null) {
+		LOG.debug("Blame of " + inputFile + " found in remote cache");
+		cacheHit();
+		return cached;
+	    }
+	}
+
+	FileBlameData data = null;
+	if (incremental != null && haveRevision != null) {
+	    data = incremental.blame(haveRevision.getDepotPathString(), haveRevision.getHaveRev(), server);
+	}
+	if (data == null && directories != null && haveRevision != null) {
+	    data = directories.blame(haveRevision.getDepotPathString(), server);
+	}
+	if (data == null) {
+	    AtomicReference<GetFileAnnotationsOptions> annotatedWith = new AtomicReference<>(annotationOptions);
+	    data = annotate(fileSpec, inputFile.toString(), server, annotationOptions, annotatedWith);
+	    if (cacheKey != null && annotatedWith.get() != annotationOptions) {
+		cacheKey = RemoteBlameCache.key(serverId(server), haveRevision.getDepotPathString(),
+			haveRevision.getHaveRev(), describe(annotatedWith.get()));
+	    }
+	}
+	if (data != null && data.complete && cacheKey != null) {
+	    cache.put(cacheKey, inputFile, data);
+	}
+	if (data != null && data.fromServer && data.complete && incremental != null && haveRevision != null) {
+	    // The blame of a revision already in the local cache is not written again
+	    incremental.record(haveRevision.getDepotPathString(), haveRevision.getHaveRev(), data);
+	}
+	return data;
+    }
+
+    /**
+     * Blame of a file revision computed by the server: annotate, filelog and fetch of the changelists missing from
+     * history.
+     *
+     * @param name name of the file in logs
+     * @return the blame, or <code>null</code> if the file has to be skipped
+     */
+    @CheckForNull
+    FileBlameData annotate(IFileSpec fileSpec, String name, IOptionsServer server,
+	    GetFileAnnotationsOptions annotationOptions) throws P4JavaException {
+	return annotate(fileSpec, name, server, annotationOptions, null);
+    }
+
+    /**
+     * @param annotatedWith set to the options of the annotate, which the annotate strategy may change
+     */
+    @CheckForNull
+    private FileBlameData annotate(IFileSpec fileSpec, String name, IOptionsServer server,
+	    GetFileAnnotationsOptions annotationOptions,
+	    @Nullable AtomicReference<GetFileAnnotationsOptions> annotatedWith) throws P4JavaException {
 	List<IFileSpec> fileSpecs = Collections.singletonList(fileSpec);
 
+	// With an annotate strategy, the history comes first so that it can tell whether annotate has to follow branches
+	AnnotateStrategy strategy = annotateStrategy;
+	if (strategy != null) {
+	    Map<IFileSpec, List<IFileRevisionData>> revisionMap = history(fileSpec, name, server);
+	    if (revisionMap == null) {
+		return null;
+	    }
+	    annotationOptions = strategy.options(annotationOptions, revisionMap.values());
+	}
+	if (annotatedWith != null) {
+	    annotatedWith.set(annotationOptions);
+	}
+
 	// Get file annotations
-	List<IFileAnnotation> fileAnnotations = server.getFileAnnotations(fileSpecs, getFileAnnotationOptions());
+	List<IFileAnnotation> fileAnnotations = null;
+	long start = System.nanoTime();
+	PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.ANNOTATE, name);
+	try {
+	    fileAnnotations = server.getFileAnnotations(fileSpecs, annotationOptions);
+	} catch (RequestException e) {
+	    if (!BatchSizer.isLimitError(e.getMessage())) {
+		throw e;
+	    }
+	    // A single file can not be split any further
+	    LOG.warn("File " + name + " exceeds the limits of the Perforce user. Skipping it. " + e.getMessage());
+	    return null;
+	} finally {
+	    phase.end(fileAnnotations != null ? fileAnnotations.size() : 0);
+	}
+	if (strategy != null) {
+	    strategy.record(annotationOptions, System.nanoTime() - start);
+	}
 	if (fileAnnotations.size() == 1 && fileAnnotations.get(0).getDepotPath() == null) {
-	    LOG.debug("File " + inputFile + " is not submitted. Skipping it.");
-	    return;
+	    LOG.debug("File " + name + " is not submitted. Skipping it.");
+	    return null;
+	}
+	if (strategy == null && history(fileSpec, name, server) == null) {
+	    return null;
+	}
+
+	int[] changelistIds = new int[fileAnnotations.size()];
+	for (int i = 0; i < changelistIds.length; i++) {
+	    changelistIds[i] = fileAnnotations.get(i).getLower();
 	}
+	return blameData(name, server, changelistIds);
+    }
 
-	// Get history of file
-	Map<IFileSpec, List<IFileRevisionData>> revisionMap = server.getRevisionHistory(fileSpecs,
-		getRevisionHistoryOptions());
+    /**
+     * Get history of file, and add it to the known changelists.
+     *
+     * @return history of the file, or <code>null</code> if it can not be fetched and the file has to be skipped
+     */
+    @CheckForNull
+    private Map<IFileSpec, List<IFileRevisionData>> history(IFileSpec fileSpec, String name, IOptionsServer server)
+	    throws P4JavaException {
+	Map<IFileSpec, List<IFileRevisionData>> revisionMap;
+	PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.HISTORY, name);
+	try {
+	    revisionMap = server.getRevisionHistory(Collections.singletonList(fileSpec), getRevisionHistoryOptions());
+	} finally {
+	    phase.end(0);
+	}
 	for (Map.Entry<IFileSpec, List<IFileRevisionData>> entry : revisionMap.entrySet()) {
 	    IFileSpec revisionFileSpec = entry.getKey();
 	    if (!FileSpecOpStatus.VALID.equals(revisionFileSpec.getOpStatus())
 		    && !FileSpecOpStatus.INFO.equals(revisionFileSpec.getOpStatus())) {
 		String statusMessage = fileSpec.getStatusMessage();
-		LOG.debug("Unable to get revisions of file " + inputFile + " [" + statusMessage + "]. Skipping it.");
-		return;
+		LOG.debug("Unable to get revisions of file " + name + " [" + statusMessage + "]. Skipping it.");
+		return null;
+	    }
+	    addHistory(entry.getValue());
+	}
+	return revisionMap;
+    }
+
+    /**
+     * Remember the changelists found in the history of a file, so that they are not fetched.
+     */
+    void addHistory(List<IFileRevisionData> revisions) {
+	for (IFileRevisionData revisionData : revisions) {
+	    revisionDataByChangelistId.put(revisionData.getChangelistId(), revisionData);
+	}
+    }
+
+    /**
+     * @param changelistIds changelist of each line, as annotated
+     */
+    FileBlameData blameData(String name, IOptionsServer server, int[] changelistIds)
+	    throws ConnectionException, AccessException {
+	Map<Integer, BlameLine> linesByChangelistId = new HashMap<Integer, BlameLine>();
+	boolean complete = resolveChangelists(name, server, changelistIds, linesByChangelistId);
+	return new FileBlameData(changelistIds, linesByChangelistId, true, complete);
+    }
+
+    @VisibleForTesting
+    void setRemoteCache(@Nullable RemoteBlameCache remoteCache) {
+	this.remoteCache = remoteCache;
+    }
+
+    @VisibleForTesting
+    void setIncrementalAnnotator(@Nullable IncrementalAnnotator incrementalAnnotator) {
+	this.incrementalAnnotator = incrementalAnnotator;
+    }
+
+    @VisibleForTesting
+    void setAuthorResolver(@Nullable AuthorResolver authorResolver) {
+	this.authorResolver = authorResolver;
+    }
+
+    @VisibleForTesting
+    void setIndex(@Nullable LocalBlameCache index) {
+	this.index = index;
+    }
+
+    @VisibleForTesting
+    void setAnnotateStrategy(@Nullable AnnotateStrategy annotateStrategy) {
+	this.annotateStrategy = annotateStrategy;
+    }
+
+    @VisibleForTesting
+    void setDirectoryAnnotator(@Nullable DirectoryAnnotator directoryAnnotator) {
+	this.directoryAnnotator = directoryAnnotator;
+    }
+
+    @VisibleForTesting
+    void setSnapshot(@Nullable BlameSnapshot snapshot) {
+	this.snapshot = snapshot;
+    }
+
+    /**
+     * Depot path and have revision of a file, or <code>null</code> if the file is not submitted.
+     */
+    @CheckForNull
+    static IExtendedFileSpec haveRevision(IOptionsServer server, IFileSpec fileSpec) throws P4JavaException {
+	List<IExtendedFileSpec> extendedFiles = server.getExtendedFiles(Collections.singletonList(fileSpec),
+		new GetExtendedFilesOptions());
+	if (extendedFiles.isEmpty()) {
+	    return null;
+	}
+	return validHaveRevision(extendedFiles.get(0));
+    }
+
+    /**
+     * Run fstat over all the files in as few commands as the limits of the user allow.
+     *
+     * @return result of fstat of each file, files whose result can not be matched are missing
+     */
+    @VisibleForTesting
+    static Map<InputFile, IExtendedFileSpec> prefetchHaveRevisions(Iterable<InputFile> inputFiles,
+	    IOptionsServer server, BatchSizer batchSizer, boolean digests) throws P4JavaException {
+	GetExtendedFilesOptions options = new GetExtendedFilesOptions();
+	if (digests) {
+	    FileStatAncilliaryOptions ancilliaryOptions = new FileStatAncilliaryOptions();
+	    ancilliaryOptions.setFileSizeDigest(true);
+	    options.setAncilliaryOptions(ancilliaryOptions);
+	}
+	Map<InputFile, IExtendedFileSpec> result = new HashMap<InputFile, IExtendedFileSpec>();
+	List<InputFile> files = new ArrayList<InputFile>();
+	for (InputFile inputFile : inputFiles) {
+	    files.add(inputFile);
+	}
+	batchSizer.run(files, batch -> {
+	    List<IFileSpec> fileSpecs = new ArrayList<IFileSpec>();
+	    for (InputFile inputFile : batch) {
+		fileSpecs.add(createFileSpec(inputFile));
+	    }
+	    List<IExtendedFileSpec> extendedFiles = server.getExtendedFiles(fileSpecs, options);
+	    BatchSizer.checkLimits(extendedFiles);
+	    // Errors carry no path, so answers are matched to files by their local path rather than by position
+	    Map<String, InputFile> filesByPath = new HashMap<String, InputFile>();
+	    for (InputFile inputFile : batch) {
+		String path = localPath(inputFile);
+		if (path != null) {
+		    filesByPath.put(path, inputFile);
+		}
+	    }
+	    for (IExtendedFileSpec extendedFile : extendedFiles) {
+		String clientPath = extendedFile.getClientPathString();
+		InputFile inputFile = FileSpecOpStatus.VALID.equals(extendedFile.getOpStatus()) && clientPath != null
+			? filesByPath.remove(normalize(clientPath)) : null;
+		if (inputFile != null) {
+		    result.put(inputFile, extendedFile);
+		} else {
+		    LOG.debug("Ignoring have revision not matching a file to blame: "
+			    + (clientPath != null ? clientPath : extendedFile.getStatusMessage()));
+		}
 	    }
-	    for (IFileRevisionData revisionData : entry.getValue()) {
-		revisionDataByChangelistId.put(revisionData.getChangelistId(), revisionData);
+	    for (InputFile inputFile : filesByPath.values()) {
+		LOG.debug("No have revision fetched for " + inputFile);
 	    }
+	});
+	LOG.debug("Fetched have revisions of " + result.size() + " files");
+	return result;
+    }
+
+    /**
+     * Files to blame, without those edited locally: the blame of their have revision would not match their lines.
+     */
+    private static List<InputFile> withoutLocalChanges(Iterable<InputFile> inputFiles,
+	    Map<InputFile, IExtendedFileSpec> haveRevisions) {
+	Set<InputFile> modified = LocalChangeDetector.modifiedFiles(haveRevisions);
+	List<InputFile> result = new ArrayList<InputFile>();
+	for (InputFile inputFile : inputFiles) {
+	    if (!modified.contains(inputFile)) {
+		result.add(inputFile);
+	    }
+	}
+	if (!modified.isEmpty()) {
+	    LOG.info(modified.size() + " files are modified locally and will not be blamed");
+	}
+	return result;
+    }
+
+    @CheckForNull
+    private static String localPath(InputFile inputFile) {
+	URI uri = inputFile.uri();
+	return uri != null && "file".equals(uri.getScheme()) ? normalize(Paths.get(uri).toString()) : null;
+    }
+
+    private static String normalize(String path) {
+	try {
+	    return Paths.get(path).toAbsolutePath().normalize().toString();
+	} catch (InvalidPathException e) {
+	    return path;
 	}
+    }
 
-	List<BlameLine> lines = computeBlame(inputFile, server, fileAnnotations);
+    @CheckForNull
+    private static IExtendedFileSpec validHaveRevision(IExtendedFileSpec extendedFile) {
+	if (!FileSpecOpStatus.VALID.equals(extendedFile.getOpStatus()) || extendedFile.getHaveRev() <= 0
+		|| extendedFile.getDepotPathString() == null) {
+	    return null;
+	}
+	return extendedFile;
+    }
+
+    /**
+     * Server id of the Perforce service, or its address when it has no id.
+     */
+    private String serverId(IOptionsServer server) throws P4JavaException {
+	String id = serverId;
+	if (id == null) {
+	    IServerInfo info = server.getServerInfo();
+	    if (info != null && info.getServerId() != null) {
+		id = info.getServerId();
+	    } else if (info != null && info.getServerAddress() != null) {
+		id = info.getServerAddress();
+	    } else {
+		id = String.valueOf(config.port());
+	    }
+	    serverId = id;
+	}
+	return id;
+    }
+
+    private static String describe(GetFileAnnotationsOptions options) {
+	return "c=" + options.isUseChangeNumbers() + ",i=" + options.isFollowBranches() + ",I="
+		+ options.isFollowAllIntegrations() + ",dw=" + options.isIgnoreWhitespaceChanges();
+    }
+
+    /**
+     * Assembly stage of the blame of a file: build one blame line per annotation and send them to SonarQube. Does not
+     * access the server.
+     */
+    void emit(InputFile inputFile, FileBlameData data, BlameOutput output) {
+	PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.COMPUTE, inputFile.toString());
+	List<BlameLine> lines = computeBlame(data);
 
 	// SONARPLUGINS-3097: Perforce does not report blame on last empty line, so
 	// populate from last line with blame
 	if (lines.size() == (inputFile.lines() - 1)) {
 	    lines.add(lines.get(lines.size() - 1));
 	}
+	phase.end(lines.size());
 
-	output.blameResult(inputFile, lines);
+	phase = PerforceEvents.begin(PerforceEvents.OUTPUT, inputFile.toString());
+	try {
+	    output.blameResult(inputFile, lines);
+	} finally {
+	    phase.end(lines.size());
+	}
     }
 
     /**
-     * Compute blame, getting changelist from server if not already retrieved
+     * Resolve every changelist referenced by annotations, getting changelist from server if not already retrieved
      */
-    private List<BlameLine> computeBlame(InputFile inputFile, IOptionsServer server,
-	    List<IFileAnnotation> fileAnnotations) throws ConnectionException, RequestException, AccessException {
-	List<BlameLine> lines = new ArrayList<BlameLine>();
-	for (IFileAnnotation fileAnnotation : fileAnnotations) {
-	    int lowerChangelistId = fileAnnotation.getLower();
+    /**
+     * @param linesByChangelistId receives the blame line of each changelist, <code>null</code> when unresolved
+     * @return <code>false</code> if a changelist could not be fetched because of a failed request
+     */
+    private boolean resolveChangelists(String name, IOptionsServer server, int[] changelistIds,
+	    Map<Integer, BlameLine> linesByChangelistId) throws ConnectionException, AccessException {
+	boolean complete = true;
+	for (int lowerChangelistId : changelistIds) {
+	    if (linesByChangelistId.containsKey(lowerChangelistId)) {
+		continue;
+	    }
 
 	    BlameLine blameLine = blameLineFromHistory(lowerChangelistId);
 	    if (blameLine == null) {
-		LOG.debug("Changelist " + lowerChangelistId + " was not found in history for " + inputFile
+		LOG.debug("Changelist " + lowerChangelistId + " was not found in history for " + name
 			+ ". It will be fetched directly.");
-		blameLine = blameLineFromChangeListDetails(server, lowerChangelistId);
+		PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.CHANGELIST, name);
+		try {
+		    blameLine = changelistCache.get(server, lowerChangelistId);
+		} catch (RequestException e) {
+		    LOG.debug("Unable to fetch changelist " + lowerChangelistId + " of " + name, e);
+		    complete = false;
+		} finally {
+		    phase.end(0);
+		}
 	    }
+	    linesByChangelistId.put(lowerChangelistId, blameLine);
+	}
+	return complete;
+    }
 
+    private List<BlameLine> computeBlame(FileBlameData data) {
+	AuthorResolver resolver = authorResolver;
+	Map<Integer, BlameLine> resolvedLines = resolver != null ? new HashMap<Integer, BlameLine>() : null;
+	List<BlameLine> lines = new ArrayList<BlameLine>();
+	for (int lowerChangelistId : data.changelistIds) {
+	    BlameLine blameLine = data.linesByChangelistId.get(lowerChangelistId);
+	    if (blameLine != null && resolver != null) {
+		BlameLine resolvedLine = resolvedLines.get(lowerChangelistId);
+		if (resolvedLine == null) {
+		    resolvedLine = new BlameLine().revision(blameLine.revision()).date(blameLine.date())
+			    .author(resolver.resolve(blameLine.author()));
+		    resolvedLines.put(lowerChangelistId, resolvedLine);
+		}
+		blameLine = resolvedLine;
+	    }
 	    if (blameLine == null) {
 		// We really couldn't get any information for this changelist!
 		// Unfortunately, blame information is required for every line...
@@ -145,25 +819,6 @@ public class PerforceBlameCommand extends BlameCommand {
 	return lines;
     }
 
-    @CheckForNull
-    private BlameLine blameLineFromChangeListDetails(IOptionsServer server, int changelistId)
-	    throws ConnectionException, RequestException, AccessException {
-	IChangelist changelist = changelistCache.get(changelistId);
-	if (changelist == null) {
-	    changelist = server.getChangelist(changelistId);
-	    // sometimes even that can fail due to cross-server imports
-	    if (changelist != null) {
-		changelistCache.put(changelistId, changelist);
-	    }
-	}
-
-	if (changelist != null) {
-	    return new BlameLine().revision(String.valueOf(changelistId)).date(changelist.getDate())
-		    .author(changelist.getUsername());
-	}
-	return null;
-    }
-
     @CheckForNull
     private BlameLine blameLineFromHistory(int changelistId) {
 	IFileRevisionData data = revisionDataByChangelistId.get(changelistId);
@@ -180,7 +835,7 @@ public class PerforceBlameCommand extends BlameCommand {
      * @return options for requests.
      */
     @Nonnull
-    private static GetFileAnnotationsOptions getFileAnnotationOptions() {
+    static GetFileAnnotationsOptions getFileAnnotationOptions() {
 	GetFileAnnotationsOptions options = new GetFileAnnotationsOptions();
 	options.setUseChangeNumbers(true);
 	options.setFollowBranches(true);
@@ -193,11 +848,11 @@ public class PerforceBlameCommand extends BlameCommand {
      *
      * @return options for requests.
      */
-    private static GetRevisionHistoryOptions getRevisionHistoryOptions() {
+    static GetRevisionHistoryOptions getRevisionHistoryOptions() {
 	GetRevisionHistoryOptions options = new GetRevisionHistoryOptions();
 	options.setIncludeInherited(true);
 	options.setLongOutput(true);
-	options.setMaxRevs(1000);
+	options.setMaxRevs(MAX_HISTORY_REVISIONS);
 	options.setOmitNonContributaryIntegrations(true);
 	return options;
     }
@@ -216,8 +871,4 @@ public class PerforceBlameCommand extends BlameCommand {
 	    return fileSpec;
     }
 
-
-
-   
-
 }
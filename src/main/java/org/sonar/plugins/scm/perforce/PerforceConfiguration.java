@@ -46,6 +46,31 @@ public class PerforceConfiguration {
     private static final String CLIENT_IMPERSONATED_HOST_PROP_KEY = "sonar.perforce.clientImpersonatedHostname";
     private static final String CHARSET_PROP_KEY = "sonar.perforce.charset";
     private static final String SOCKSOTIMEOUT_PROP_KEY = "sonar.perforce.sockSoTimeout";
+    private static final String SOCK_RECV_BUF_SIZE_PROP_KEY = "sonar.perforce.sockRecvBufSize";
+    private static final String SOCK_SEND_BUF_SIZE_PROP_KEY = "sonar.perforce.sockSendBufSize";
+    private static final String TCP_NO_DELAY_PROP_KEY = "sonar.perforce.tcpNoDelay";
+    private static final String USE_KEEPALIVE_PROP_KEY = "sonar.perforce.useKeepAlive";
+    private static final String TRACE_PROP_KEY = "sonar.perforce.trace";
+    private static final String TRACE_ANONYMIZE_PROP_KEY = "sonar.perforce.trace.anonymize";
+    private static final String STATE_DIR_PROP_KEY = "sonar.perforce.stateDir";
+    private static final String BLAME_THREADS_PROP_KEY = "sonar.perforce.blame.threads";
+    private static final String BLAME_CACHE_URL_PROP_KEY = "sonar.perforce.blame.cacheUrl";
+    private static final String BLAME_SNAPSHOT_PROP_KEY = "sonar.perforce.blame.snapshot";
+    private static final String BLAME_INDEX_PROP_KEY = "sonar.perforce.blame.index";
+    private static final String BLAME_INCREMENTAL_CACHE_DIR_PROP_KEY = "sonar.perforce.blame.incrementalCacheDir";
+    private static final String BLAME_AUTHOR_FORMAT_PROP_KEY = "sonar.perforce.blame.authorFormat";
+    private static final String BLAME_AUTHOR_MAPPING_PROP_KEY = "sonar.perforce.blame.authorMapping";
+    private static final String BLAME_ADAPTIVE_CONCURRENCY_PROP_KEY = "sonar.perforce.blame.adaptiveConcurrency";
+    private static final String BLAME_DETECT_LOCAL_CHANGES_PROP_KEY = "sonar.perforce.blame.detectLocalChanges";
+    private static final String BLAME_AGENT_PORT_PROP_KEY = "sonar.perforce.blame.agentPort";
+    private static final String BLAME_AGENT_TIMEOUT_PROP_KEY = "sonar.perforce.blame.agentTimeout";
+    static final int DEFAULT_AGENT_TIMEOUT = 600000;
+    private static final String BLAME_RESUMABLE_PROP_KEY = "sonar.perforce.blame.resumable";
+    private static final String BLAME_DIRECTORY_THRESHOLD_PROP_KEY = "sonar.perforce.blame.directoryThreshold";
+    static final int DEFAULT_DIRECTORY_THRESHOLD = 0;
+    private static final String BLAME_ADAPTIVE_ANNOTATE_PROP_KEY = "sonar.perforce.blame.adaptiveAnnotate";
+    static final String AUTHOR_FORMAT_USERNAME = "username";
+    static final String AUTHOR_FORMAT_EMAIL = "email";
 
     private final Configuration settings;
 
@@ -88,7 +113,96 @@ public class PerforceConfiguration {
 			.type(PropertyType.INTEGER)
 			.defaultValue(String.valueOf(RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_DEFAULT))
 			.onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
-			.subCategory(CATEGORY_PERFORCE).index(7).build());
+			.subCategory(CATEGORY_PERFORCE).index(7).build(),
+		PropertyDefinition.builder(BLAME_THREADS_PROP_KEY).name("Blame threads").description(
+			"Number of files blamed concurrently. Each thread uses its own connection to the Perforce service.")
+			.type(PropertyType.INTEGER).defaultValue("1").onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(8).build(),
+		PropertyDefinition.builder(BLAME_CACHE_URL_PROP_KEY).name("Blame cache URL").description(
+			"URL of a blame cache shared between analyses over HTTP. Blame is looked up there before annotating files, and new results are uploaded to it.")
+			.type(PropertyType.STRING).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(9).build(),
+		PropertyDefinition.builder(BLAME_SNAPSHOT_PROP_KEY).name("Blame snapshot").description(
+			"Path to a blame snapshot built by BlameSnapshotBuilder. Files whose have revision is in the snapshot are not annotated.")
+			.type(PropertyType.STRING).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(10).build(),
+		PropertyDefinition.builder(BLAME_INCREMENTAL_CACHE_DIR_PROP_KEY).name("Incremental blame cache directory")
+			.description(
+				"Directory where blame of each file is kept between analyses. When set, blame of a new revision of a file is computed from the cached one and the diffs of the revisions in between, rather than annotated by the server.")
+			.type(PropertyType.STRING).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(11).build(),
+		PropertyDefinition.builder(BLAME_AUTHOR_FORMAT_PROP_KEY).name("Blame author format").description(
+			"Author reported for each line: the Perforce user name, or the email of the Perforce user.")
+			.type(PropertyType.SINGLE_SELECT_LIST).options(AUTHOR_FORMAT_USERNAME, AUTHOR_FORMAT_EMAIL)
+			.defaultValue(AUTHOR_FORMAT_USERNAME).onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(12).build(),
+		PropertyDefinition.builder(BLAME_AUTHOR_MAPPING_PROP_KEY).name("Blame author mapping").description(
+			"Path to a properties file mapping Perforce user names to the author to report (user=identity). Takes precedence over the author format.")
+			.type(PropertyType.STRING).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(13).build(),
+		PropertyDefinition.builder(BLAME_INDEX_PROP_KEY).name("Blame index").description(
+			"Directory of a blame index kept up to date by BlameIndexer. Files whose have revision is indexed are not annotated.")
+			.type(PropertyType.STRING).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(14).build(),
+		PropertyDefinition.builder(BLAME_ADAPTIVE_CONCURRENCY_PROP_KEY).name("Adaptive blame concurrency").description(
+			"Adjust the number of files blamed concurrently, up to the number of blame threads, to the latency and warnings reported by the Perforce service.")
+			.type(PropertyType.BOOLEAN).defaultValue(FALSE).onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(15).build(),
+		PropertyDefinition.builder(BLAME_DETECT_LOCAL_CHANGES_PROP_KEY).name("Detect local changes").description(
+			"Compare the digest of each file with the digest of its have revision, and do not blame files modified locally since their blame would not match their content.")
+			.type(PropertyType.BOOLEAN).defaultValue(FALSE).onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(16).build(),
+		PropertyDefinition.builder(BLAME_AGENT_PORT_PROP_KEY).name("Blame agent port").description(
+			"Port of a BlameAgent running on the same machine, which keeps Perforce connections and caches between analyses. The analysis connects to Perforce directly when no agent answers.")
+			.type(PropertyType.INTEGER).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(17).build(),
+		PropertyDefinition.builder(BLAME_RESUMABLE_PROP_KEY).name("Resumable blame").description(
+			"Record the blame of each file in a journal of the state directory, so that an analysis failing halfway only blames the remaining files when run again.")
+			.type(PropertyType.BOOLEAN).defaultValue(FALSE).onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(18).build(),
+		PropertyDefinition.builder(BLAME_DIRECTORY_THRESHOLD_PROP_KEY).name("Directory annotate threshold").description(
+			"Percentage of the files of a directory to blame above which the whole directory is annotated with a single command. Defaults to 0, which annotates files one by one.")
+			.type(PropertyType.INTEGER).defaultValue(String.valueOf(DEFAULT_DIRECTORY_THRESHOLD))
+			.onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(19).build(),
+		PropertyDefinition.builder(BLAME_ADAPTIVE_ANNOTATE_PROP_KEY).name("Adaptive annotate").description(
+			"Follow branches when annotating only the files whose history contains integrations contributing to their content.")
+			.type(PropertyType.BOOLEAN).defaultValue(FALSE).onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(20).build(),
+		PropertyDefinition.builder(SOCK_RECV_BUF_SIZE_PROP_KEY).name("Socket receive buffer size").description(
+			"Size of the receive buffer of the sockets to the Perforce service (bytes). Larger buffers help high latency links.")
+			.type(PropertyType.INTEGER).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(22).build(),
+		PropertyDefinition.builder(SOCK_SEND_BUF_SIZE_PROP_KEY).name("Socket send buffer size").description(
+			"Size of the send buffer of the sockets to the Perforce service (bytes).")
+			.type(PropertyType.INTEGER).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(23).build(),
+		PropertyDefinition.builder(TCP_NO_DELAY_PROP_KEY).name("TCP no delay").description(
+			"Disable Nagle's algorithm on the sockets to the Perforce service.")
+			.type(PropertyType.BOOLEAN).defaultValue(String.valueOf(RpcPropertyDefs.RPC_SOCKET_TCP_NO_DELAY_DEFAULT))
+			.onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(24).build(),
+		PropertyDefinition.builder(USE_KEEPALIVE_PROP_KEY).name("TCP keepalive").description(
+			"Enable TCP keepalive on the sockets to the Perforce service, so that idle connections are not dropped by firewalls.")
+			.type(PropertyType.BOOLEAN).defaultValue(FALSE).onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(25).build(),
+		PropertyDefinition.builder(TRACE_PROP_KEY).name("Trace file").description(
+			"Path of a file where the results of the Perforce service used by the blame are recorded with their latency, to be replayed offline.")
+			.type(PropertyType.STRING).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(26).build(),
+		PropertyDefinition.builder(TRACE_ANONYMIZE_PROP_KEY).name("Anonymize trace").description(
+			"Replace user names and emails by a hash in the recorded trace.")
+			.type(PropertyType.BOOLEAN).defaultValue(FALSE).onQualifiers(Qualifiers.PROJECT)
+			.category(CoreProperties.CATEGORY_SCM).subCategory(CATEGORY_PERFORCE).index(27).build(),
+		PropertyDefinition.builder(STATE_DIR_PROP_KEY).name("State directory").description(
+			"Directory where blame costs, user emails and the blame journal are kept between analyses. Defaults to ~/.sonar/perforce.")
+			.type(PropertyType.STRING).onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(28).build(),
+		PropertyDefinition.builder(BLAME_AGENT_TIMEOUT_PROP_KEY).name("Blame agent timeout").description(
+			"Time in milliseconds to wait for the blame agent to answer the blame of one file, which it only sends once annotate, filelog and changelists are fetched. A file the agent fails to blame is blamed directly.")
+			.type(PropertyType.INTEGER).defaultValue(String.valueOf(DEFAULT_AGENT_TIMEOUT))
+			.onQualifiers(Qualifiers.PROJECT).category(CoreProperties.CATEGORY_SCM)
+			.subCategory(CATEGORY_PERFORCE).index(29).build());
     }
 
     @CheckForNull
@@ -112,7 +226,7 @@ public class PerforceConfiguration {
     }
 
     public Boolean useSsl() {
-	return settings.getBoolean(USESSL_PROP_KEY).orElse(null);
+	return settings.getBoolean(USESSL_PROP_KEY).orElse(false);
     }
 
     @CheckForNull
@@ -126,7 +240,101 @@ public class PerforceConfiguration {
     }
 
     public Integer sockSoTimeout() {
-	return settings.getInt(SOCKSOTIMEOUT_PROP_KEY).orElse(null);
+	return settings.getInt(SOCKSOTIMEOUT_PROP_KEY).orElse(RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_DEFAULT);
+    }
+
+    @CheckForNull
+    public Integer sockRecvBufSize() {
+	return settings.getInt(SOCK_RECV_BUF_SIZE_PROP_KEY).orElse(null);
+    }
+
+    @CheckForNull
+    public Integer sockSendBufSize() {
+	return settings.getInt(SOCK_SEND_BUF_SIZE_PROP_KEY).orElse(null);
+    }
+
+    public boolean tcpNoDelay() {
+	return settings.getBoolean(TCP_NO_DELAY_PROP_KEY).orElse(RpcPropertyDefs.RPC_SOCKET_TCP_NO_DELAY_DEFAULT);
+    }
+
+    public boolean useKeepAlive() {
+	return settings.getBoolean(USE_KEEPALIVE_PROP_KEY).orElse(false);
+    }
+
+    @CheckForNull
+    public String stateDir() {
+	return settings.get(STATE_DIR_PROP_KEY).orElse(null);
+    }
+
+    @CheckForNull
+    public String trace() {
+	return settings.get(TRACE_PROP_KEY).orElse(null);
+    }
+
+    public boolean traceAnonymize() {
+	return settings.getBoolean(TRACE_ANONYMIZE_PROP_KEY).orElse(false);
+    }
+
+    @CheckForNull
+    public String blameCacheUrl() {
+	return settings.get(BLAME_CACHE_URL_PROP_KEY).orElse(null);
+    }
+
+    @CheckForNull
+    public String blameIndex() {
+	return settings.get(BLAME_INDEX_PROP_KEY).orElse(null);
+    }
+
+    @CheckForNull
+    public String blameSnapshot() {
+	return settings.get(BLAME_SNAPSHOT_PROP_KEY).orElse(null);
+    }
+
+    @CheckForNull
+    public String blameIncrementalCacheDir() {
+	return settings.get(BLAME_INCREMENTAL_CACHE_DIR_PROP_KEY).orElse(null);
+    }
+
+    public String blameAuthorFormat() {
+	return settings.get(BLAME_AUTHOR_FORMAT_PROP_KEY).orElse(AUTHOR_FORMAT_USERNAME);
+    }
+
+    @CheckForNull
+    public String blameAuthorMapping() {
+	return settings.get(BLAME_AUTHOR_MAPPING_PROP_KEY).orElse(null);
+    }
+
+    public int blameThreads() {
+	return Math.max(1, settings.getInt(BLAME_THREADS_PROP_KEY).orElse(1));
+    }
+
+    public boolean blameAdaptiveConcurrency() {
+	return settings.getBoolean(BLAME_ADAPTIVE_CONCURRENCY_PROP_KEY).orElse(false);
+    }
+
+    public boolean blameDetectLocalChanges() {
+	return settings.getBoolean(BLAME_DETECT_LOCAL_CHANGES_PROP_KEY).orElse(false);
+    }
+
+    @CheckForNull
+    public Integer blameAgentPort() {
+	return settings.getInt(BLAME_AGENT_PORT_PROP_KEY).orElse(null);
+    }
+
+    public int blameAgentTimeout() {
+	return settings.getInt(BLAME_AGENT_TIMEOUT_PROP_KEY).orElse(DEFAULT_AGENT_TIMEOUT);
+    }
+
+    public boolean blameResumable() {
+	return settings.getBoolean(BLAME_RESUMABLE_PROP_KEY).orElse(false);
+    }
+
+    public boolean blameAdaptiveAnnotate() {
+	return settings.getBoolean(BLAME_ADAPTIVE_ANNOTATE_PROP_KEY).orElse(false);
+    }
+
+    public int blameDirectoryThreshold() {
+	return Math.max(0, settings.getInt(BLAME_DIRECTORY_THRESHOLD_PROP_KEY).orElse(DEFAULT_DIRECTORY_THRESHOLD));
     }
 
 }
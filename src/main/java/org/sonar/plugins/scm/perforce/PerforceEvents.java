@@ -0,0 +1,90 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import javax.annotation.Nullable;
+
+/**
+ * Java Flight Recorder events of the Perforce commands and of the phases of the blame, so that they show up in a
+ * recording of the scanner next to GC and socket I/O instead of as opaque reads inside p4java.
+ * <p>
+ * JFR is only available from JDK 11 and 8u262. On older JVMs the events are never created and {@link JfrEvents},
+ * which depends on the <code>jdk.jfr</code> API, is not even loaded. When JFR is available but not recording, an
+ * event costs a check of whether it is enabled.
+ */
+final class PerforceEvents {
+
+  static final String CONNECT = "connect";
+  static final String CLIENT_INIT = "client init";
+  static final String ANNOTATE = "annotate";
+  static final String HISTORY = "history";
+  static final String CHANGELIST = "changelist";
+  static final String COMPUTE = "compute";
+  static final String OUTPUT = "output";
+
+  /**
+   * A phase being timed.
+   */
+  interface Phase {
+    /**
+     * @param lines number of lines processed, 0 if not relevant
+     */
+    void end(int lines);
+  }
+
+  /**
+   * A server command being timed.
+   */
+  interface Command {
+    void end();
+  }
+
+  private static final Phase NO_PHASE = lines -> {
+  };
+  private static final Command NO_COMMAND = () -> {
+  };
+  private static final boolean AVAILABLE = isAvailable();
+
+  private PerforceEvents() {
+  }
+
+  /**
+   * Start timing a phase. Commands sent to the server by the same thread until the phase ends are attributed to its
+   * file.
+   *
+   * @param path file or server the phase works on
+   */
+  static Phase begin(String phase, @Nullable String path) {
+    return AVAILABLE ? JfrEvents.beginPhase(phase, path) : NO_PHASE;
+  }
+
+  static Command beginCommand(String command) {
+    return AVAILABLE ? JfrEvents.beginCommand(command) : NO_COMMAND;
+  }
+
+  private static boolean isAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, PerforceEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException | LinkageError e) {
+      return false;
+    }
+  }
+}
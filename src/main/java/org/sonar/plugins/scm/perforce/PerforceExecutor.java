@@ -22,7 +22,10 @@ package org.sonar.plugins.scm.perforce;
 import java.io.File;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -60,6 +63,9 @@ public class PerforceExecutor {
 
   private final PerforceConfiguration config;
 
+  /** Listeners notified of server commands, in addition to logging. */
+  private final List<ICommandCallback> callbacks = new CopyOnWriteArrayList<ICommandCallback>();
+
   /**
    * Instantiates a new p4 command helper.
    *
@@ -73,6 +79,18 @@ public class PerforceExecutor {
     init(workDir);
   }
 
+  /**
+   * Instantiates a new p4 command helper connected to the server only, for commands that do not need a client
+   * workspace.
+   *
+   * @param config
+   *            the plugin configuration
+   */
+  public PerforceExecutor(PerforceConfiguration config) {
+    this.config = config;
+    initServer();
+  }
+
   /**
    * Gets the server.
    *
@@ -82,6 +100,26 @@ public class PerforceExecutor {
     return server;
   }
 
+  /**
+   * Register a listener notified of every command sent to the server, its output and its duration.
+   *
+   * @param callback
+   *            the listener
+   */
+  public void addCallback(ICommandCallback callback) {
+    callbacks.add(callback);
+  }
+
+  /**
+   * Record the results of the server from now on. {@link #getServer()} then returns the recording server.
+   *
+   * @param recorder
+   *            the trace recorder
+   */
+  void recordTo(TraceRecorder recorder) {
+    server = recorder.wrap(server);
+  }
+
   /**
    * Initialize Perforce server and client instances.
    *
@@ -90,7 +128,12 @@ public class PerforceExecutor {
     // Initialize the Perforce server.
     initServer();
     // Initialize the Perforce client.
-    initClient(workDir);
+    PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.CLIENT_INIT, config.clientName());
+    try {
+      initClient(workDir);
+    } finally {
+      phase.end(0);
+    }
   }
 
   /**
@@ -111,7 +154,7 @@ public class PerforceExecutor {
    *
    */
   private void initServer() {
-
+    PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.CONNECT, config.port());
     try {
       createServer();
       // Connect to the server.
@@ -136,6 +179,8 @@ public class PerforceExecutor {
       throw new IllegalArgumentException(e.getLocalizedMessage(), e);
     } catch (P4JavaException e) {
       throw new IllegalStateException(e.getLocalizedMessage(), e);
+    } finally {
+      phase.end(0);
     }
   }
 
@@ -160,8 +205,7 @@ public class PerforceExecutor {
       throw MessageException.of("Please configure perforce port using " + PerforceConfiguration.PORT_PROP_KEY);
     }
 
-    Properties props = new Properties();
-    props.put(RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_NICK, config.sockSoTimeout());
+    Properties props = rpcProperties(config);
 
     UsageOptions usageOptions = new UsageOptions(null);
     // Param is nullable
@@ -174,36 +218,88 @@ public class PerforceExecutor {
       server = ServerFactory.getOptionsServer("p4java://" + config.port(), props, usageOptions);
     }
     // Register server callback.
-    server.registerCallback(new CommandLogger());
+    server.registerCallback(new CommandLogger(callbacks));
+  }
+
+  /**
+   * Socket options of the connections to the server.
+   *
+   * @param config
+   *            the plugin configuration
+   * @return the RPC properties
+   */
+  static Properties rpcProperties(PerforceConfiguration config) {
+    Properties props = new Properties();
+    props.put(RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_NICK, config.sockSoTimeout());
+    props.put(RpcPropertyDefs.RPC_SOCKET_TCP_NO_DELAY_NICK, String.valueOf(config.tcpNoDelay()));
+    if (config.useKeepAlive()) {
+      props.put(RpcPropertyDefs.RPC_SOCKET_USE_KEEPALIVE_NICK, "true");
+    }
+    Integer recvBufSize = config.sockRecvBufSize();
+    if (recvBufSize != null) {
+      props.put(RpcPropertyDefs.RPC_SOCKET_RECV_BUF_SIZE_NICK, String.valueOf(recvBufSize));
+    }
+    Integer sendBufSize = config.sockSendBufSize();
+    if (sendBufSize != null) {
+      props.put(RpcPropertyDefs.RPC_SOCKET_SEND_BUF_SIZE_NICK, String.valueOf(sendBufSize));
+    }
+    return props;
   }
 
   private static class CommandLogger implements ICommandCallback {
+    private final List<ICommandCallback> callbacks;
+    private final Map<Integer, PerforceEvents.Command> commands = new ConcurrentHashMap<Integer, PerforceEvents.Command>();
+
+    CommandLogger(List<ICommandCallback> callbacks) {
+      this.callbacks = callbacks;
+    }
+
     @Override
     public void receivedServerMessage(int key, int genericCode, int severityCode, String message) {
       // Log warning messages from server, since it's not included in the other callback methods.
       if (severityCode == MessageSeverityCode.E_WARN) {
         LOG.warn(message);
       }
+      for (ICommandCallback callback : callbacks) {
+        callback.receivedServerMessage(key, genericCode, severityCode, message);
+      }
     }
 
     @Override
     public void receivedServerInfoLine(int key, String infoLine) {
       LOG.debug(infoLine);
+      for (ICommandCallback callback : callbacks) {
+        callback.receivedServerInfoLine(key, infoLine);
+      }
     }
 
     @Override
     public void receivedServerErrorLine(int key, String errorLine) {
       LOG.error(errorLine);
+      for (ICommandCallback callback : callbacks) {
+        callback.receivedServerErrorLine(key, errorLine);
+      }
     }
 
     @Override
     public void issuingServerCommand(int key, String command) {
       LOG.debug(command);
+      commands.put(key, PerforceEvents.beginCommand(command));
+      for (ICommandCallback callback : callbacks) {
+        callback.issuingServerCommand(key, command);
+      }
     }
 
     @Override
     public void completedServerCommand(int key, long millisecsTaken) {
       LOG.debug("Command completed in " + millisecsTaken + "ms");
+      PerforceEvents.Command event = commands.remove(key);
+      if (event != null) {
+        event.end();
+      }
+      for (ICommandCallback callback : callbacks) {
+        callback.completedServerCommand(key, millisecsTaken);
+      }
     }
   }
 
@@ -0,0 +1,130 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.annotation.CheckForNull;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.fs.InputFile;
+
+/**
+ * Client of a blame cache shared over HTTP by several analyses. Entries are addressed by a hash of the server
+ * identity, the depot path, the revision and the annotate options: <code>GET {url}/{key}</code> returns the blame
+ * encoded with {@link BlameDataCodec}, or 404 if not known yet, and <code>PUT {url}/{key}</code> stores it.
+ * <p>
+ * The cache is only an optimization: any error is logged and handled as a cache miss.
+ */
+class RemoteBlameCache implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RemoteBlameCache.class);
+  private static final ContentType CONTENT_TYPE = ContentType.create("application/octet-stream");
+
+  private final String baseUrl;
+  private final CloseableHttpClient httpClient;
+
+  RemoteBlameCache(String baseUrl, int timeoutMillis) {
+    this.baseUrl = StringUtils.removeEnd(baseUrl, "/");
+    RequestConfig requestConfig = RequestConfig.custom()
+      .setConnectTimeout(timeoutMillis)
+      .setSocketTimeout(timeoutMillis)
+      .build();
+    this.httpClient = HttpClients.custom().setDefaultRequestConfig(requestConfig).build();
+  }
+
+  /**
+   * Content address of the blame of a file revision.
+   *
+   * @param serverId identity of the Perforce server, since the same depot path can exist on several servers
+   */
+  static String key(String serverId, String depotPath, int revision, String annotateOptions) {
+    return sha1Hex(serverId + "|" + depotPath + "#" + revision + "|" + annotateOptions);
+  }
+
+  static String sha1Hex(String value) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+      return String.format("%040x", new BigInteger(1, hash));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @CheckForNull
+  FileBlameData get(String key, InputFile inputFile) {
+    HttpGet get = new HttpGet(baseUrl + "/" + key);
+    try (CloseableHttpResponse response = httpClient.execute(get)) {
+      int status = response.getStatusLine().getStatusCode();
+      if (status != HttpStatus.SC_OK) {
+        EntityUtils.consumeQuietly(response.getEntity());
+        if (status != HttpStatus.SC_NOT_FOUND) {
+          LOG.debug("Unexpected status " + status + " from blame cache for " + inputFile);
+        }
+        return null;
+      }
+      return BlameDataCodec.decode(EntityUtils.toByteArray(response.getEntity()));
+    } catch (IOException e) {
+      LOG.debug("Unable to get blame of " + inputFile + " from cache", e);
+      return null;
+    }
+  }
+
+  void put(String key, InputFile inputFile, FileBlameData data) {
+    HttpPut put = new HttpPut(baseUrl + "/" + key);
+    put.setEntity(new ByteArrayEntity(BlameDataCodec.encode(data), CONTENT_TYPE));
+    try (CloseableHttpResponse response = httpClient.execute(put)) {
+      EntityUtils.consumeQuietly(response.getEntity());
+      int status = response.getStatusLine().getStatusCode();
+      if (status / 100 != 2) {
+        LOG.debug("Unexpected status " + status + " when storing blame of " + inputFile + " in cache");
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to store blame of " + inputFile + " in cache", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      LOG.debug("Unable to close blame cache client", e);
+    }
+  }
+}
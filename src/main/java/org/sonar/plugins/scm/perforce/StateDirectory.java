@@ -0,0 +1,65 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Directory where the plugin keeps state between analyses of a project. The scanner work directory can not be used
+ * since it is wiped when each analysis starts.
+ * <p>
+ * Each project checked out in a workspace gets its own directory under <code>sonar.perforce.stateDir</code>, or
+ * <code>~/.sonar/perforce</code> by default, named after the workspace and the base directory of the project.
+ */
+final class StateDirectory {
+
+  private StateDirectory() {
+    // only static methods
+  }
+
+  static File of(PerforceConfiguration config, File baseDir) {
+    String client = config.clientName() != null ? config.clientName() : "noclient";
+    return new File(root(config), client.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + hash(baseDir.getAbsolutePath()));
+  }
+
+  /**
+   * Parent of the state directories, for state shared by all the projects.
+   */
+  static File root(PerforceConfiguration config) {
+    String root = config.stateDir();
+    return root != null ? new File(root) : new File(new File(System.getProperty("user.home"), ".sonar"), "perforce");
+  }
+
+  static String hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 4; i++) {
+        hex.append(String.format("%02x", digest[i]));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.util.Optional;
+
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Configuration;
+
+/**
+ * Plugin settings read from JVM system properties, for command-line tools running outside of a SonarQube analysis,
+ * e.g. <code>-Dsonar.perforce.port=ssl:perforce:1666</code>.
+ */
+class SystemPropertiesConfiguration implements Configuration {
+
+  @Override
+  public Optional<String> get(String key) {
+    return Optional.ofNullable(StringUtils.trimToNull(System.getProperty(key)));
+  }
+
+  @Override
+  public boolean hasKey(String key) {
+    return get(key).isPresent();
+  }
+
+  @Override
+  public String[] getStringArray(String key) {
+    return get(key).map(value -> StringUtils.stripAll(StringUtils.split(value, ','))).orElse(new String[0]);
+  }
+}
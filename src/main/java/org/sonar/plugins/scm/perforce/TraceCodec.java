@@ -0,0 +1,342 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.IUserGroup;
+import com.perforce.p4java.core.IUserSummary;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileAnnotation;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.core.file.IRevisionIntegrationData;
+
+/**
+ * Encoding of the results of the Perforce server in a trace. Result objects are recorded as the values of the getters
+ * the plugin reads, and replayed as proxies of their interface returning these values. Line contents and descriptions
+ * are never recorded: the recorder empties the lines of diffs before they get here. When anonymizing, user names and
+ * emails are replaced by a hash.
+ * <p>
+ * Strings are written as their UTF-8 length and bytes, since keys of batched requests exceed the 64 KB of
+ * {@link DataOutput#writeUTF(String)}. Only the recorded interfaces and the enums of p4java are read back, and sizes
+ * read from a trace are bounded.
+ */
+final class TraceCodec {
+
+  private static final int NULL = 0;
+  private static final int STRING = 1;
+  private static final int INT = 2;
+  private static final int LONG = 3;
+  private static final int BOOLEAN = 4;
+  private static final int DATE = 5;
+  private static final int ENUM = 6;
+  private static final int LIST = 7;
+  private static final int MAP = 8;
+  private static final int BYTES = 9;
+  private static final int OBJECT = 10;
+
+  /** Recorded interfaces, most specific first, with their recorded getters. */
+  private static final Map<Class<?>, List<String>> GETTERS = new LinkedHashMap<Class<?>, List<String>>();
+
+  static {
+    GETTERS.put(IExtendedFileSpec.class, Arrays.asList("getOpStatus", "getStatusMessage", "getDepotPathString",
+      "getClientPathString", "getHaveRev", "getHeadRev", "getHeadType", "getDigest", "getFileSize"));
+    GETTERS.put(IFileSpec.class, Arrays.asList("getOpStatus", "getStatusMessage", "getDepotPathString",
+      "getEndRevision"));
+    GETTERS.put(IFileAnnotation.class, Arrays.asList("getDepotPath", "getLower", "getUpper"));
+    GETTERS.put(IFileRevisionData.class, Arrays.asList("getRevision", "getChangelistId", "getAction", "getDate",
+      "getUserName", "getFileType", "getDepotFileName", "getRevisionIntegrationData"));
+    GETTERS.put(IRevisionIntegrationData.class, Arrays.asList("getFromFile", "getStartFromRev", "getEndFromRev",
+      "getHowFrom"));
+    GETTERS.put(IChangelist.class, Arrays.asList("getId", "getDate", "getUsername"));
+    GETTERS.put(IUserGroup.class, Arrays.asList("getName", "getMaxResults", "getMaxScanRows", "getMaxLockTime"));
+    GETTERS.put(IUserSummary.class, Arrays.asList("getLoginName", "getEmail", "getFullName"));
+  }
+
+  /** Largest string or byte array read from a trace. */
+  static final int MAX_STRING_BYTES = 1 << 26;
+
+  /** Largest list or map read from a trace. */
+  static final int MAX_ELEMENTS = 1 << 24;
+
+  private static final String P4JAVA_PACKAGE = "com.perforce.p4java.";
+
+  private static final List<String> USER_GETTERS = Arrays.asList("getUserName", "getUsername", "getLoginName",
+    "getFullName");
+
+  private final boolean anonymize;
+
+  TraceCodec(boolean anonymize) {
+    this.anonymize = anonymize;
+  }
+
+  /**
+   * @param getter name of the method which returned the value, which tells whether it is a user name
+   */
+  void write(DataOutput out, String getter, Object value) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+    } else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, anonymize(getter, (String) value));
+    } else if (value instanceof Integer) {
+      out.writeByte(INT);
+      out.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Date) {
+      out.writeByte(DATE);
+      out.writeLong(((Date) value).getTime());
+    } else if (value instanceof Enum) {
+      out.writeByte(ENUM);
+      out.writeUTF(((Enum<?>) value).getDeclaringClass().getName());
+      out.writeUTF(((Enum<?>) value).name());
+    } else if (value instanceof List) {
+      out.writeByte(LIST);
+      List<?> list = (List<?>) value;
+      out.writeInt(list.size());
+      for (Object element : list) {
+        write(out, getter, element);
+      }
+    } else if (value instanceof Map) {
+      out.writeByte(MAP);
+      Map<?, ?> map = (Map<?, ?>) value;
+      out.writeInt(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        write(out, null, entry.getKey());
+        write(out, null, entry.getValue());
+      }
+    } else if (value instanceof byte[]) {
+      out.writeByte(BYTES);
+      out.writeInt(((byte[]) value).length);
+      out.write((byte[]) value);
+    } else {
+      writeObject(out, value);
+    }
+  }
+
+  private void writeObject(DataOutput out, Object value) throws IOException {
+    for (Map.Entry<Class<?>, List<String>> entry : GETTERS.entrySet()) {
+      if (entry.getKey().isInstance(value)) {
+        out.writeByte(OBJECT);
+        out.writeUTF(entry.getKey().getName());
+        out.writeInt(entry.getValue().size());
+        for (String getter : entry.getValue()) {
+          out.writeUTF(getter);
+          write(out, getter, get(entry.getKey(), getter, value));
+        }
+        return;
+      }
+    }
+    throw new IOException("Unable to record " + value.getClass().getName());
+  }
+
+  private static Object get(Class<?> type, String getter, Object value) throws IOException {
+    try {
+      return type.getMethod(getter).invoke(value);
+    } catch (ReflectiveOperationException e) {
+      throw new IOException("Unable to record " + getter + " of " + type.getName(), e);
+    }
+  }
+
+  private String anonymize(String getter, String value) {
+    if (!anonymize) {
+      return value;
+    }
+    if ("getEmail".equals(getter)) {
+      return "user-" + hash(value) + "@example.invalid";
+    }
+    if (USER_GETTERS.contains(getter)) {
+      return anonymizeUser(value);
+    }
+    return value;
+  }
+
+  /**
+   * @return the user name, or its hash when anonymizing
+   */
+  String anonymizeUser(String userName) {
+    return anonymize ? "user-" + hash(userName) : userName;
+  }
+
+  static void writeString(DataOutput out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[readSize(in, MAX_STRING_BYTES)];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int readSize(DataInput in, int max) throws IOException {
+    int size = in.readInt();
+    if (size < 0 || size > max) {
+      throw new IOException("Invalid size in trace: " + size);
+    }
+    return size;
+  }
+
+  static String hash(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < 4; i++) {
+        hex.append(String.format("%02x", digest[i]));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Object read(DataInput in) throws IOException {
+    int tag = in.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case INT:
+        return in.readInt();
+      case LONG:
+        return in.readLong();
+      case BOOLEAN:
+        return in.readBoolean();
+      case DATE:
+        return new Date(in.readLong());
+      case ENUM:
+        return readEnum(in.readUTF(), in.readUTF());
+      case LIST:
+        int size = readSize(in, MAX_ELEMENTS);
+        // Not presized, since the size is only known to be valid once all the elements are read
+        List<Object> list = new ArrayList<Object>();
+        for (int i = 0; i < size; i++) {
+          list.add(read(in));
+        }
+        return list;
+      case MAP:
+        int entries = readSize(in, MAX_ELEMENTS);
+        Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+        for (int i = 0; i < entries; i++) {
+          map.put(read(in), read(in));
+        }
+        return map;
+      case BYTES:
+        byte[] bytes = new byte[readSize(in, MAX_STRING_BYTES)];
+        in.readFully(bytes);
+        return bytes;
+      case OBJECT:
+        return readObject(in);
+      default:
+        throw new IOException("Unknown value in trace: " + tag);
+    }
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Object readEnum(String className, String name) throws IOException {
+    if (!className.startsWith(P4JAVA_PACKAGE)) {
+      throw new IOException("Unknown enum in trace: " + className);
+    }
+    try {
+      // Not initialized before it is known to be an enum
+      Class<?> type = Class.forName(className, false, TraceCodec.class.getClassLoader());
+      if (!type.isEnum()) {
+        throw new IOException("Unknown enum in trace: " + className);
+      }
+      return Enum.valueOf((Class<? extends Enum>) type, name);
+    } catch (ClassNotFoundException | IllegalArgumentException e) {
+      throw new IOException("Unknown value in trace: " + className + "." + name, e);
+    }
+  }
+
+  private static Object readObject(DataInput in) throws IOException {
+    String className = in.readUTF();
+    Class<?> type = null;
+    for (Class<?> recorded : GETTERS.keySet()) {
+      if (recorded.getName().equals(className)) {
+        type = recorded;
+      }
+    }
+    if (type == null) {
+      throw new IOException("Unknown object in trace: " + className);
+    }
+    int size = readSize(in, GETTERS.get(type).size());
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (int i = 0; i < size; i++) {
+      values.put(in.readUTF(), read(in));
+    }
+    return Proxy.newProxyInstance(TraceCodec.class.getClassLoader(), new Class<?>[] {type},
+      (proxy, method, args) -> invoke(proxy, method, args, values));
+  }
+
+  private static Object invoke(Object proxy, Method method, Object[] args, Map<String, Object> values) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return values.toString();
+      default:
+        break;
+    }
+    Object value = values.get(method.getName());
+    if (value != null || args != null) {
+      return value;
+    }
+    return defaultValue(method.getReturnType());
+  }
+
+  static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    return null;
+  }
+}
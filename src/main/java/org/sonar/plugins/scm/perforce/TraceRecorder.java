@@ -0,0 +1,270 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.OptionsException;
+import com.perforce.p4java.option.Options;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Records the results of the Perforce server used by the blame, with their latency, to a trace file that
+ * {@link TraceReplayServer} serves back without access to the server. Each record is the key of the request (command
+ * and arguments), its duration in nanoseconds, then its result or its exception. Diffs are recorded without the
+ * contents of their lines.
+ * <p>
+ * One recorder is shared by the connections of a blame: records are appended as commands complete.
+ */
+class TraceRecorder implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TraceRecorder.class);
+
+  static final int MAGIC = 0x50345453;
+  static final int RESULT = 0;
+  static final int FAILURE = 1;
+
+  /** Commands of the server used by the blame. Others are passed through without being recorded. */
+  static final List<String> RECORDED_METHODS = Arrays.asList("getFileAnnotations", "getRevisionHistory",
+    "getChangelist", "getExtendedFiles", "getUserGroups", "getUsers", "getUserName", "getFileDiffsStream");
+
+  /** Commands taking user names as arguments, which are part of the key of their requests. */
+  private static final List<String> USER_ARGUMENT_METHODS = Arrays.asList("getUserGroups", "getUsers");
+
+  private final DataOutputStream out;
+  private final TraceCodec codec;
+  private int records;
+
+  private TraceRecorder(DataOutputStream out, boolean anonymize) {
+    this.out = out;
+    this.codec = new TraceCodec(anonymize);
+  }
+
+  static TraceRecorder open(File file, boolean anonymize) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+      new FileOutputStream(file))));
+    out.writeInt(MAGIC);
+    LOG.info("Recording Perforce trace to " + file + (anonymize ? ", anonymized" : ""));
+    return new TraceRecorder(out, anonymize);
+  }
+
+  /**
+   * @return the server, recording the results of the commands used by the blame
+   */
+  IOptionsServer wrap(IOptionsServer server) {
+    return (IOptionsServer) Proxy.newProxyInstance(TraceRecorder.class.getClassLoader(),
+      new Class<?>[] {IOptionsServer.class}, (proxy, method, args) -> invoke(server, method, args));
+  }
+
+  private Object invoke(IOptionsServer server, Method method, Object[] args) throws Throwable {
+    if (!RECORDED_METHODS.contains(method.getName())) {
+      return call(server, method, args);
+    }
+    String key = recordedKey(method.getName(), args);
+    long start = System.nanoTime();
+    Object result;
+    try {
+      result = call(server, method, args);
+    } catch (Exception e) {
+      recordFailure(key, System.nanoTime() - start, e);
+      throw e;
+    }
+    long nanos = System.nanoTime() - start;
+    if (result instanceof InputStream) {
+      byte[] bytes = readFully((InputStream) result);
+      record(key, nanos, method.getName(), withoutLineContents(bytes));
+      return new ByteArrayInputStream(bytes);
+    }
+    record(key, nanos, method.getName(), result);
+    return result;
+  }
+
+  private static Object call(IOptionsServer server, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(server, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try (InputStream stream = in) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = stream.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  /**
+   * Diff in RCS format with the lines it adds replaced by empty lines, so that source lines are not recorded. Commands
+   * and headers are kept, and so is the number of lines, which is all {@link IncrementalAnnotator#applyRcsDiff} reads.
+   * Any other line is emptied as well.
+   */
+  static byte[] withoutLineContents(byte[] diff) {
+    String[] lines = new String(diff, StandardCharsets.ISO_8859_1).split("\n", -1);
+    StringBuilder result = new StringBuilder();
+    int added = 0;
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i];
+      if (added > 0) {
+        added--;
+        line = "";
+      } else {
+        Matcher matcher = IncrementalAnnotator.RCS_COMMAND.matcher(line);
+        if (matcher.matches()) {
+          added = "a".equals(matcher.group(1)) ? Integer.parseInt(matcher.group(3)) : 0;
+        } else if (!line.startsWith("====")) {
+          line = "";
+        }
+      }
+      if (i > 0) {
+        result.append('\n');
+      }
+      result.append(line);
+    }
+    return result.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private void record(String key, long nanos, String method, Object result) {
+    try {
+      // Encode first, so that a result that can not be recorded does not leave a partial record
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream record = new DataOutputStream(bytes);
+      TraceCodec.writeString(record, key);
+      record.writeLong(nanos);
+      record.writeByte(RESULT);
+      codec.write(record, method, result);
+      append(bytes);
+    } catch (IOException e) {
+      LOG.debug("Unable to record result of " + key, e);
+    }
+  }
+
+  private void recordFailure(String key, long nanos, Exception e) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream record = new DataOutputStream(bytes);
+      TraceCodec.writeString(record, key);
+      record.writeLong(nanos);
+      record.writeByte(FAILURE);
+      TraceCodec.writeString(record, e.getClass().getName());
+      TraceCodec.writeString(record, String.valueOf(e.getMessage()));
+      append(bytes);
+    } catch (IOException ioe) {
+      LOG.debug("Unable to record failure of " + key, ioe);
+    }
+  }
+
+  private synchronized void append(ByteArrayOutputStream record) throws IOException {
+    record.writeTo(out);
+    records++;
+  }
+
+  /**
+   * Key of a recorded request, with the user names it contains anonymized like the results: the replayed blame sends
+   * the anonymized names it got from the trace.
+   */
+  private String recordedKey(String method, Object[] args) {
+    if (args == null || !USER_ARGUMENT_METHODS.contains(method)) {
+      return key(method, args);
+    }
+    Object[] anonymized = args.clone();
+    for (int i = 0; i < anonymized.length; i++) {
+      if (anonymized[i] instanceof String) {
+        anonymized[i] = codec.anonymizeUser((String) anonymized[i]);
+      } else if (anonymized[i] instanceof List) {
+        List<Object> names = new ArrayList<Object>();
+        for (Object name : (List<?>) anonymized[i]) {
+          names.add(name instanceof String ? codec.anonymizeUser((String) name) : name);
+        }
+        anonymized[i] = names;
+      }
+    }
+    return key(method, anonymized);
+  }
+
+  /**
+   * Key of a request: command name, then file specs with their revision and the options as command line flags.
+   */
+  static String key(String method, Object[] args) {
+    StringBuilder key = new StringBuilder(method);
+    if (args != null) {
+      for (Object arg : args) {
+        key.append(' ');
+        appendArg(key, arg);
+      }
+    }
+    return key.toString();
+  }
+
+  private static void appendArg(StringBuilder key, Object arg) {
+    if (arg instanceof IFileSpec) {
+      IFileSpec fileSpec = (IFileSpec) arg;
+      key.append(fileSpec.getAnnotatedPreferredPathString());
+    } else if (arg instanceof Collection) {
+      key.append('[');
+      for (Object element : (Collection<?>) arg) {
+        appendArg(key, element);
+        key.append(',');
+      }
+      key.append(']');
+    } else if (arg instanceof Options) {
+      try {
+        key.append(((Options) arg).processOptions(null));
+      } catch (OptionsException | RuntimeException e) {
+        key.append(arg.getClass().getSimpleName());
+      }
+    } else {
+      key.append(arg);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+    LOG.info("Recorded " + records + " Perforce results");
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.server.IOptionsServer;
+
+/**
+ * Perforce server serving the results of a trace recorded by {@link TraceRecorder}, with the recorded latencies, to
+ * benchmark the blame offline:
+ *
+ * <pre>
+ * IOptionsServer server = TraceReplayServer.load(new File("blame.trace"), 1.0);
+ * FileBlameData data = new PerforceBlameCommand(config).fetch(inputFile, server);
+ * </pre>
+ *
+ * Identical requests get their recorded results in order, the last one being served again when the same request is
+ * sent more times than recorded. Requests that were not recorded fail with a {@link RequestException}. The replayed
+ * server is always connected, other server methods do nothing.
+ */
+class TraceReplayServer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TraceReplayServer.class);
+
+  private final Map<String, List<Recorded>> recordsByKey;
+  private final Map<String, AtomicInteger> cursors = new HashMap<String, AtomicInteger>();
+  private final double latencyFactor;
+
+  private TraceReplayServer(Map<String, List<Recorded>> recordsByKey, double latencyFactor) {
+    this.recordsByKey = recordsByKey;
+    this.latencyFactor = latencyFactor;
+    for (String key : recordsByKey.keySet()) {
+      cursors.put(key, new AtomicInteger());
+    }
+  }
+
+  /**
+   * @param latencyFactor factor applied to the recorded latencies: 1 replays them, 0 answers immediately
+   */
+  static IOptionsServer load(File file, double latencyFactor) throws IOException {
+    Map<String, List<Recorded>> recordsByKey = new HashMap<String, List<Recorded>>();
+    int records = 0;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+      new FileInputStream(file))))) {
+      if (in.readInt() != TraceRecorder.MAGIC) {
+        throw new IOException(file + " is not a Perforce trace");
+      }
+      while (true) {
+        String key;
+        try {
+          key = TraceCodec.readString(in);
+        } catch (EOFException e) {
+          break;
+        }
+        long nanos = in.readLong();
+        Recorded recorded = in.readByte() == TraceRecorder.RESULT ? new Recorded(nanos, TraceCodec.read(in), null, null)
+          : new Recorded(nanos, null, TraceCodec.readString(in), TraceCodec.readString(in));
+        recordsByKey.computeIfAbsent(key, k -> new ArrayList<Recorded>()).add(recorded);
+        records++;
+      }
+    }
+    LOG.info("Replaying " + records + " Perforce results from " + file);
+    TraceReplayServer replay = new TraceReplayServer(recordsByKey, latencyFactor);
+    return (IOptionsServer) Proxy.newProxyInstance(TraceReplayServer.class.getClassLoader(),
+      new Class<?>[] {IOptionsServer.class}, (proxy, method, args) -> replay.invoke(proxy, method, args));
+  }
+
+  private Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+    String name = method.getName();
+    if (!TraceRecorder.RECORDED_METHODS.contains(name)) {
+      switch (name) {
+        case "equals":
+          return proxy == args[0];
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "toString":
+          return "Perforce trace replay";
+        case "isConnected":
+          return true;
+        default:
+          return TraceCodec.defaultValue(method.getReturnType());
+      }
+    }
+    String key = TraceRecorder.key(name, args);
+    List<Recorded> records = recordsByKey.get(key);
+    if (records == null) {
+      throw new RequestException("Not recorded in trace: " + key);
+    }
+    int index = Math.min(cursors.get(key).getAndIncrement(), records.size() - 1);
+    Recorded recorded = records.get(index);
+    long delay = (long) (recorded.nanos * latencyFactor);
+    if (delay > 0) {
+      LockSupport.parkNanos(delay);
+    }
+    if (recorded.exceptionClass != null) {
+      throw failure(recorded.exceptionClass, recorded.message);
+    }
+    if (recorded.result instanceof byte[]) {
+      return new ByteArrayInputStream((byte[]) recorded.result);
+    }
+    return recorded.result;
+  }
+
+  /**
+   * @return the recorded exception when it is a p4java exception, which the blame handles by type, else a
+   *         {@link RequestException} with its message. No other class of the trace is instantiated.
+   */
+  private static Exception failure(String className, String message) {
+    try {
+      Class<?> type = Class.forName(className, false, TraceReplayServer.class.getClassLoader());
+      if (P4JavaException.class.isAssignableFrom(type)) {
+        return (Exception) type.getConstructor(String.class).newInstance(message);
+      }
+    } catch (ReflectiveOperationException e) {
+      // Replayed as a request failure
+    }
+    return new RequestException(className + ": " + message);
+  }
+
+  private static class Recorded {
+    private final long nanos;
+    private final Object result;
+    private final String exceptionClass;
+    private final String message;
+
+    Recorded(long nanos, Object result, String exceptionClass, String message) {
+      this.nanos = nanos;
+      this.result = result;
+      this.exceptionClass = exceptionClass;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.MessageSeverityCode;
+import com.perforce.p4java.server.callback.ICommandCallback;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+  @Test
+  public void startsAtHalfTheThreads() {
+    assertThat(new AdaptiveConcurrencyLimiter(8).limit()).isEqualTo(4);
+    assertThat(new AdaptiveConcurrencyLimiter(3).limit()).isEqualTo(2);
+    assertThat(new AdaptiveConcurrencyLimiter(1).limit()).isEqualTo(1);
+  }
+
+  @Test
+  public void increasesWhileLatencyIsStable() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4);
+    for (int i = 0; i < 100; i++) {
+      limiter.completed("annotate", 20);
+    }
+    assertThat(limiter.limit()).isEqualTo(4);
+  }
+
+  @Test
+  public void decreasesWhenLatencyGrows() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(16);
+    limiter.completed("annotate", 100);
+    limiter.completed("annotate", 500);
+    assertThat(limiter.limit()).isEqualTo(6);
+
+    // Still cooling down
+    limiter.completed("annotate", 500);
+    assertThat(limiter.limit()).isEqualTo(6);
+
+    for (int i = 0; i < AdaptiveConcurrencyLimiter.COOLDOWN_SAMPLES; i++) {
+      limiter.completed("annotate", 100);
+    }
+    assertThat(limiter.limit()).isEqualTo(7);
+    limiter.completed("annotate", 500);
+    assertThat(limiter.limit()).isEqualTo(5);
+  }
+
+  @Test
+  public void eachCommandHasItsOwnBaseline() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4);
+    limiter.completed("fstat", 5);
+    limiter.completed("annotate", 300);
+    limiter.completed("annotate", 400);
+    assertThat(limiter.limit()).isEqualTo(3);
+  }
+
+  @Test
+  public void baselineFollowsALastinglySlowerServer() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4);
+    limiter.completed("annotate", 100);
+    limiter.completed("annotate", 300);
+    assertThat(limiter.limit()).isEqualTo(1);
+
+    // Fastest of the next windows raise the baseline, until the new latency is normal
+    for (int i = 0; i < 3 * AdaptiveConcurrencyLimiter.WINDOW_SAMPLES; i++) {
+      limiter.completed("annotate", 300);
+    }
+    assertThat(limiter.limit()).isEqualTo(4);
+  }
+
+  @Test
+  public void fastCommandsAreNeverSlow() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(4);
+    limiter.completed("annotate", 1);
+    limiter.completed("annotate", 40);
+    assertThat(limiter.limit()).isEqualTo(3);
+  }
+
+  @Test
+  public void decreasesOnServerWarnings() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8);
+    limiter.serverMessage(MessageGenericCode.EV_EMPTY, MessageSeverityCode.E_WARN, "no such file(s).");
+    assertThat(limiter.limit()).isEqualTo(4);
+
+    limiter.serverMessage(MessageGenericCode.EV_NONE, MessageSeverityCode.E_WARN,
+      "Request too large (over 500000); see 'p4 help maxresults'. MaxResults exceeded.");
+    assertThat(limiter.limit()).isEqualTo(3);
+  }
+
+  @Test
+  public void decreasesOnConnectionErrorsButNotBelowOne() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2);
+    limiter.serverMessage(MessageGenericCode.EV_COMM, MessageSeverityCode.E_FAILED, "Partner exited unexpectedly.");
+    assertThat(limiter.limit()).isEqualTo(1);
+  }
+
+  @Test
+  public void ignoresErrorsAboutTheCommand() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(8);
+    limiter.serverMessage(MessageGenericCode.EV_EMPTY, MessageSeverityCode.E_FAILED, "//depot/Foo.java - no such file(s).");
+    limiter.serverMessage(MessageGenericCode.EV_CONTEXT, MessageSeverityCode.E_FAILED, "Foo.java - file(s) not on client.");
+    limiter.serverMessage(MessageGenericCode.EV_PROTECT, MessageSeverityCode.E_FAILED, "Access for user 'scanner' has not been enabled");
+    assertThat(limiter.limit()).isEqualTo(4);
+  }
+
+  @Test
+  public void listensToEachConnection() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(16);
+    ICommandCallback first = limiter.forConnection();
+    ICommandCallback second = limiter.forConnection();
+    first.issuingServerCommand(1, "fstat -Olhp //depot/Foo.java");
+    second.issuingServerCommand(1, "annotate -c //depot/Foo.java");
+    first.completedServerCommand(1, 10);
+    second.completedServerCommand(1, 200);
+    assertThat(limiter.limit()).isEqualTo(8);
+
+    second.receivedServerMessage(2, MessageGenericCode.EV_TOOBIG, MessageSeverityCode.E_FAILED, "Too many rows scanned");
+    assertThat(limiter.limit()).isEqualTo(6);
+  }
+
+  @Test
+  public void acquireWaitsForRelease() throws Exception {
+    final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1);
+    limiter.acquire();
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      try {
+        limiter.acquire();
+        acquired.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    thread.start();
+    assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    limiter.release();
+    assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue();
+    thread.join();
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.batch.fs.InputFile;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileAnnotation;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.core.file.IRevisionIntegrationData;
+import com.perforce.p4java.option.server.GetExtendedFilesOptions;
+import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
+import com.perforce.p4java.option.server.GetRevisionHistoryOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class AnnotateStrategyTest {
+
+  private final AnnotateStrategy strategy = new AnnotateStrategy();
+  private final GetFileAnnotationsOptions requested = PerforceBlameCommand.getFileAnnotationOptions();
+
+  @Test
+  public void plainAnnotateWithoutIntegrations() {
+    GetFileAnnotationsOptions options = strategy.options(requested,
+      Collections.singletonList(Arrays.asList(revision(FileAction.ADD), revision(FileAction.EDIT))));
+
+    assertThat(options.isFollowBranches()).isFalse();
+    assertThat(options.isUseChangeNumbers()).isTrue();
+    assertThat(options.isIgnoreWhitespaceChanges()).isTrue();
+  }
+
+  @Test
+  public void followBranchesWithIntegrations() {
+    assertThat(strategy.options(requested,
+      Collections.singletonList(Arrays.asList(revision(FileAction.ADD), revision(FileAction.INTEGRATE))))).isSameAs(requested);
+    assertThat(strategy.options(requested,
+      Collections.singletonList(Collections.singletonList(revision(FileAction.BRANCH))))).isSameAs(requested);
+    IFileRevisionData mergedEdit = revision(FileAction.EDIT, "merge from");
+    assertThat(strategy.options(requested,
+      Collections.singletonList(Collections.singletonList(mergedEdit)))).isSameAs(requested);
+  }
+
+  @Test
+  public void followBranchesWhenHistoryIsUnknownOrInherited() {
+    assertThat(strategy.options(requested, Collections.<List<IFileRevisionData>>emptyList())).isSameAs(requested);
+    List<IFileRevisionData> edits = Collections.singletonList(revision(FileAction.EDIT));
+    assertThat(strategy.options(requested, Arrays.asList(edits, edits))).isSameAs(requested);
+  }
+
+  @Test
+  public void followBranchesWhenHistoryIsTruncated() {
+    List<IFileRevisionData> edits = Collections.nCopies(PerforceBlameCommand.MAX_HISTORY_REVISIONS,
+      revision(FileAction.EDIT));
+    assertThat(strategy.options(requested, Collections.singletonList(edits))).isSameAs(requested);
+    assertThat(strategy.options(requested, Collections.singletonList(edits.subList(1, edits.size()))))
+      .isNotSameAs(requested);
+  }
+
+  @Test
+  public void ignoreNonContributingIntegrations() {
+    assertThat(AnnotateStrategy.hasContributingIntegrations(
+      Collections.singletonList(revision(FileAction.EDIT, "delete from")))).isFalse();
+  }
+
+  @Test
+  public void estimateTimeSaved() {
+    GetFileAnnotationsOptions plain = new GetFileAnnotationsOptions();
+    strategy.record(requested, 50000000);
+    strategy.record(plain, 10000000);
+    strategy.record(plain, 10000000);
+
+    assertThat(strategy.followedFiles()).isEqualTo(1);
+    assertThat(strategy.plainFiles()).isEqualTo(2);
+    assertThat(strategy.savedMillis()).isEqualTo(80);
+  }
+
+  @Test
+  public void noEstimateWithoutBothKinds() {
+    strategy.record(new GetFileAnnotationsOptions(), 10000000);
+    assertThat(strategy.savedMillis()).isZero();
+  }
+
+  @Test
+  public void commandAnnotatesPlainlyFilesWithoutIntegrations() throws Exception {
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = new PerforceBlameCommand(mock(PerforceConfiguration.class));
+    command.setAnnotateStrategy(strategy);
+    Map<IFileSpec, List<IFileRevisionData>> history = new HashMap<IFileSpec, List<IFileRevisionData>>();
+    IFileSpec spec = mock(IFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    history.put(spec, Collections.singletonList(revision(FileAction.ADD)));
+    when(server.getRevisionHistory(anyList(), any(GetRevisionHistoryOptions.class))).thenReturn(history);
+    IFileAnnotation annotation = mock(IFileAnnotation.class);
+    when(annotation.getDepotPath()).thenReturn("//depot/Foo.java");
+    when(annotation.getLower()).thenReturn(3);
+    when(server.getFileAnnotations(anyList(), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(Collections.singletonList(annotation));
+
+    assertThat(command.fetch(mock(InputFile.class), server).changelistIds).containsExactly(3);
+
+    ArgumentCaptor<GetFileAnnotationsOptions> options = ArgumentCaptor.forClass(GetFileAnnotationsOptions.class);
+    verify(server).getFileAnnotations(anyList(), options.capture());
+    assertThat(options.getValue().isFollowBranches()).isFalse();
+    assertThat(strategy.plainFiles()).isEqualTo(1);
+  }
+
+  @Test
+  public void remoteCacheKeyedByOptionsOfTheAnnotate() throws Exception {
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = new PerforceBlameCommand(mock(PerforceConfiguration.class));
+    command.setAnnotateStrategy(strategy);
+    RemoteBlameCache cache = mock(RemoteBlameCache.class);
+    command.setRemoteCache(cache);
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getDepotPathString()).thenReturn("//depot/Foo.java");
+    when(extendedFile.getHaveRev()).thenReturn(2);
+    when(server.getExtendedFiles(anyList(), any(GetExtendedFilesOptions.class)))
+      .thenReturn(Collections.singletonList(extendedFile));
+    Map<IFileSpec, List<IFileRevisionData>> history = new HashMap<IFileSpec, List<IFileRevisionData>>();
+    IFileSpec spec = mock(IFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    history.put(spec, Collections.singletonList(revision(FileAction.ADD)));
+    when(server.getRevisionHistory(anyList(), any(GetRevisionHistoryOptions.class))).thenReturn(history);
+    IFileAnnotation annotation = mock(IFileAnnotation.class);
+    when(annotation.getDepotPath()).thenReturn("//depot/Foo.java");
+    when(annotation.getLower()).thenReturn(3);
+    when(server.getFileAnnotations(anyList(), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(Collections.singletonList(annotation));
+    InputFile inputFile = mock(InputFile.class);
+
+    command.fetch(inputFile, server);
+
+    ArgumentCaptor<String> lookedUp = ArgumentCaptor.forClass(String.class);
+    verify(cache, times(2)).get(lookedUp.capture(), eq(inputFile));
+    ArgumentCaptor<String> stored = ArgumentCaptor.forClass(String.class);
+    verify(cache).put(stored.capture(), eq(inputFile), any(FileBlameData.class));
+    // looked up with the requested options first, then with the plain ones it was stored with
+    assertThat(stored.getValue()).isNotEqualTo(lookedUp.getAllValues().get(0));
+    assertThat(stored.getValue()).isEqualTo(lookedUp.getAllValues().get(1));
+  }
+
+  private static IFileRevisionData revision(FileAction action, String... howFrom) {
+    IFileRevisionData data = mock(IFileRevisionData.class);
+    when(data.getAction()).thenReturn(action);
+    when(data.getChangelistId()).thenReturn(3);
+    when(data.getDate()).thenReturn(new Date(1000));
+    when(data.getUserName()).thenReturn("jhenry");
+    IRevisionIntegrationData[] integrations = new IRevisionIntegrationData[howFrom.length];
+    for (int i = 0; i < howFrom.length; i++) {
+      integrations[i] = mock(IRevisionIntegrationData.class);
+      when(integrations[i].getHowFrom()).thenReturn(howFrom[i]);
+    }
+    when(data.getRevisionIntegrationData()).thenReturn(Arrays.asList(integrations));
+    return data;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.perforce.p4java.core.IUserSummary;
+import com.perforce.p4java.option.server.GetUsersOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class AuthorResolverTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final IOptionsServer server = mock(IOptionsServer.class);
+  private final PerforceConfiguration config = mock(PerforceConfiguration.class);
+
+  @Test
+  public void noResolverForUserNames() throws Exception {
+    when(config.blameAuthorFormat()).thenReturn("username");
+    assertThat(AuthorResolver.create(config, server, temp.getRoot())).isNull();
+    verifyNoInteractions(server);
+  }
+
+  @Test
+  public void emailsLoadedOnceAndKeptOnDisk() throws Exception {
+    when(config.blameAuthorFormat()).thenReturn("email");
+    List<IUserSummary> users = Arrays.asList(user("jhenry", "julien.henry@example.com"), user("nomail", null));
+    when(server.getUsers(isNull(), any(GetUsersOptions.class))).thenReturn(users);
+
+    File stateDir = new File(temp.getRoot(), "state");
+    AuthorResolver resolver = AuthorResolver.create(config, server, stateDir);
+    assertThat(resolver.resolve("jhenry")).isEqualTo("julien.henry@example.com");
+    assertThat(resolver.resolve("nomail")).isEqualTo("nomail");
+    assertThat(resolver.resolve("deleted")).isEqualTo("deleted");
+
+    // Next analysis reuses the users saved on disk
+    AuthorResolver next = AuthorResolver.create(config, server, stateDir);
+    assertThat(next.resolve("jhenry")).isEqualTo("julien.henry@example.com");
+    verify(server, times(1)).getUsers(isNull(), any(GetUsersOptions.class));
+  }
+
+  @Test
+  public void mappingTakesPrecedence() throws Exception {
+    File mapping = temp.newFile();
+    Files.write(mapping.toPath(), "jhenry=julien\n".getBytes("UTF-8"));
+    when(config.blameAuthorFormat()).thenReturn("username");
+    when(config.blameAuthorMapping()).thenReturn(mapping.getAbsolutePath());
+
+    AuthorResolver resolver = AuthorResolver.create(config, server, null);
+    assertThat(resolver.resolve("jhenry")).isEqualTo("julien");
+    assertThat(resolver.resolve("bgates")).isEqualTo("bgates");
+    verifyNoInteractions(server);
+  }
+
+  private static IUserSummary user(String login, String email) {
+    IUserSummary user = mock(IUserSummary.class);
+    when(user.getLoginName()).thenReturn(login);
+    when(user.getEmail()).thenReturn(email);
+    return user;
+  }
+}
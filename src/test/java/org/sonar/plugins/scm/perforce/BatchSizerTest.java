@@ -0,0 +1,127 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.perforce.p4java.core.IUserGroup;
+import com.perforce.p4java.exception.AccessException;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.option.server.GetUserGroupsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class BatchSizerTest {
+
+  @Test
+  public void effectiveLimitIsTheHighestOfTheGroups() {
+    IUserGroup strict = group(1000, IUserGroup.UNSET);
+    IUserGroup lenient = group(50000, 200);
+    IUserGroup unlimited = group(IUserGroup.UNLIMITED, IUserGroup.UNSET);
+
+    assertThat(BatchSizer.effectiveLimit(Arrays.asList(strict, lenient), true)).isEqualTo(50000);
+    assertThat(BatchSizer.effectiveLimit(Arrays.asList(strict, lenient), false)).isEqualTo(200);
+    assertThat(BatchSizer.effectiveLimit(Arrays.asList(strict, unlimited), true)).isEqualTo(IUserGroup.UNLIMITED);
+    assertThat(BatchSizer.effectiveLimit(Collections.singletonList(strict), false)).isEqualTo(IUserGroup.UNLIMITED);
+    assertThat(BatchSizer.effectiveLimit(null, true)).isEqualTo(IUserGroup.UNLIMITED);
+  }
+
+  @Test
+  public void sizeFromLimits() {
+    assertThat(BatchSizer.sizeFor(IUserGroup.UNLIMITED, IUserGroup.UNLIMITED)).isEqualTo(BatchSizer.MAX_BATCH_SIZE);
+    assertThat(BatchSizer.sizeFor(500, IUserGroup.UNLIMITED)).isEqualTo(250);
+    assertThat(BatchSizer.sizeFor(50000, 100)).isEqualTo(50);
+    assertThat(BatchSizer.sizeFor(1, 1)).isEqualTo(1);
+  }
+
+  @Test
+  public void sizeForUser() throws Exception {
+    IOptionsServer server = mock(IOptionsServer.class);
+    when(server.getUserName()).thenReturn("jhenry");
+    List<IUserGroup> groups = Collections.singletonList(group(100, IUserGroup.UNSET));
+    when(server.getUserGroups(eq("jhenry"), any(GetUserGroupsOptions.class))).thenReturn(groups);
+    assertThat(BatchSizer.forUser(server).size()).isEqualTo(50);
+
+    when(server.getUserGroups(eq("jhenry"), any(GetUserGroupsOptions.class))).thenThrow(new AccessException("denied"));
+    assertThat(BatchSizer.forUser(server).size()).isEqualTo(BatchSizer.MAX_BATCH_SIZE);
+  }
+
+  @Test
+  public void halveBatchesOnLimitError() throws Exception {
+    BatchSizer batchSizer = new BatchSizer(4);
+    final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+    batchSizer.run(Arrays.asList(1, 2, 3, 4, 5, 6), batch -> {
+      batches.add(new ArrayList<Integer>(batch));
+      if (batch.size() > 2) {
+        throw new RequestException("Too many rows scanned (over 2); see 'p4 help maxscanrows'.");
+      }
+    });
+
+    assertThat(batches).containsExactly(Arrays.asList(1, 2, 3, 4), Arrays.asList(1, 2), Arrays.asList(3, 4),
+      Arrays.asList(5, 6));
+    assertThat(batchSizer.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void otherErrorsAreNotRetried() throws Exception {
+    BatchSizer batchSizer = new BatchSizer(4);
+    try {
+      batchSizer.run(Arrays.asList(1, 2), batch -> {
+        throw new RequestException("Connection refused");
+      });
+      fail("Expected exception");
+    } catch (P4JavaException e) {
+      assertThat(e).hasMessage("Connection refused");
+    }
+    assertThat(batchSizer.size()).isEqualTo(4);
+  }
+
+  @Test
+  public void singleItemOverLimitFails() throws Exception {
+    BatchSizer batchSizer = new BatchSizer(1);
+    try {
+      batchSizer.run(Collections.singletonList(1), batch -> {
+        throw new RequestException("Request too large (over 1); see 'p4 help maxresults'.");
+      });
+      fail("Expected exception");
+    } catch (RequestException e) {
+      assertThat(BatchSizer.isLimitError(e.getMessage())).isTrue();
+    }
+  }
+
+  private static IUserGroup group(int maxResults, int maxScanRows) {
+    IUserGroup group = mock(IUserGroup.class);
+    when(group.getMaxResults()).thenReturn(maxResults);
+    when(group.getMaxScanRows()).thenReturn(maxScanRows);
+    return group;
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+
+import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.core.IUserSummary;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.option.server.GetExtendedFilesOptions;
+import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
+import com.perforce.p4java.option.server.GetUsersOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class BlameAgentTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final IOptionsServer server = mock(IOptionsServer.class);
+  private final PerforceBlameCommand command = mock(PerforceBlameCommand.class);
+  private File tokenFile;
+  private int port;
+  private BlameAgent agent;
+  private BlameAgentClient client;
+
+  @Before
+  public void startAgent() throws Exception {
+    when(server.isConnected()).thenReturn(true);
+    IClient workspace = mock(IClient.class);
+    when(server.getClient("myclient")).thenReturn(workspace);
+    tokenFile = new File(temp.newFolder(), "agent.token");
+    agent = new BlameAgent(command, Collections.singletonList(server), "myclient", tokenFile);
+    port = agent.start(0);
+    client = BlameAgentClient.connect(port, "myclient", tokenFile, 5000, 5000, 1);
+  }
+
+  @After
+  public void stopAgent() {
+    client.close();
+    agent.stop();
+  }
+
+  @Test
+  public void blameThroughAgent() throws Exception {
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getDepotPathString()).thenReturn("//depot/src/Foo.java");
+    when(extendedFile.getHaveRev()).thenReturn(2);
+    List<IExtendedFileSpec> extendedFiles = Collections.singletonList(extendedFile);
+    when(server.getExtendedFiles((List<IFileSpec>) (List<?>) anyList(), any(GetExtendedFilesOptions.class)))
+      .thenReturn(extendedFiles);
+    Map<Integer, BlameLine> lines = new HashMap<Integer, BlameLine>();
+    lines.put(3, new BlameLine().revision("3").date(new Date(1000)).author("jhenry"));
+    when(command.annotate(any(IFileSpec.class), anyString(), eq(server), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(new FileBlameData(new int[] {3, 3}, lines));
+
+    InputFile inputFile = inputFile(temp.newFile("Foo.java"));
+    FileBlameData data = client.fetch(inputFile);
+    assertThat(data.changelistIds).containsExactly(3, 3);
+    assertThat(data.linesByChangelistId.get(3).author()).isEqualTo("jhenry");
+    assertThat(data.complete).isTrue();
+
+    // Second analysis of the same revision is served from memory
+    assertThat(client.fetch(inputFile).changelistIds).containsExactly(3, 3);
+    verify(command, times(1)).annotate(any(IFileSpec.class), anyString(), eq(server),
+      any(GetFileAnnotationsOptions.class));
+    verify(server, times(1)).getClient("myclient");
+  }
+
+  @Test
+  public void incompleteBlameIsNotKept() throws Exception {
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getDepotPathString()).thenReturn("//depot/src/Foo.java");
+    when(extendedFile.getHaveRev()).thenReturn(2);
+    when(server.getExtendedFiles((List<IFileSpec>) (List<?>) anyList(), any(GetExtendedFilesOptions.class)))
+      .thenReturn(Collections.singletonList(extendedFile));
+    when(command.annotate(any(IFileSpec.class), anyString(), eq(server), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(new FileBlameData(new int[] {3}, new HashMap<Integer, BlameLine>(), true, false));
+
+    InputFile inputFile = inputFile(temp.newFile("Foo.java"));
+    assertThat(client.fetch(inputFile).complete).isFalse();
+
+    // Not served from memory to the next analysis
+    assertThat(client.fetch(inputFile).complete).isFalse();
+    verify(command, times(2)).annotate(any(IFileSpec.class), anyString(), eq(server),
+      any(GetFileAnnotationsOptions.class));
+  }
+
+  @Test
+  public void slowBlameFailsWithIOException() throws Exception {
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getDepotPathString()).thenReturn("//depot/src/Foo.java");
+    when(extendedFile.getHaveRev()).thenReturn(2);
+    when(server.getExtendedFiles((List<IFileSpec>) (List<?>) anyList(), any(GetExtendedFilesOptions.class)))
+      .thenReturn(Collections.singletonList(extendedFile));
+    when(command.annotate(any(IFileSpec.class), anyString(), eq(server), any(GetFileAnnotationsOptions.class)))
+      .thenAnswer(invocation -> {
+        Thread.sleep(1000);
+        return new FileBlameData(new int[] {3}, new HashMap<Integer, BlameLine>());
+      });
+
+    BlameAgentClient impatient = BlameAgentClient.connect(port, "myclient", tokenFile, 5000, 100, 1);
+    try {
+      impatient.fetch(inputFile(temp.newFile("Foo.java")));
+      fail("Expected a timeout");
+    } catch (IOException e) {
+      // The analysis blames the file directly
+    } finally {
+      impatient.close();
+    }
+  }
+
+  @Test
+  public void notSubmittedFile() throws Exception {
+    when(server.getExtendedFiles((List<IFileSpec>) (List<?>) anyList(), any(GetExtendedFilesOptions.class)))
+      .thenReturn(Collections.<IExtendedFileSpec>emptyList());
+
+    assertThat(client.fetch(inputFile(temp.newFile("Bar.java")))).isNull();
+  }
+
+  @Test
+  public void users() throws Exception {
+    IUserSummary user = mock(IUserSummary.class);
+    when(user.getLoginName()).thenReturn("jhenry");
+    when(user.getEmail()).thenReturn("julien.henry@example.com");
+    List<IUserSummary> users = Collections.singletonList(user);
+    when(server.getUsers(any(), any(GetUsersOptions.class))).thenReturn(users);
+
+    assertThat(client.users()).containsEntry("jhenry", "julien.henry@example.com");
+    assertThat(client.users()).hasSize(1);
+    verify(server, times(1)).getUsers(any(), any(GetUsersOptions.class));
+  }
+
+  @Test
+  public void tokenOnlyReadableByOwner() throws Exception {
+    assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath()))).isEqualTo("rw-------");
+  }
+
+  @Test
+  public void refuseRequestsWithoutToken() throws Exception {
+    File wrongToken = temp.newFile();
+    Files.write(wrongToken.toPath(), "guess".getBytes(StandardCharsets.US_ASCII));
+
+    assertThat(BlameAgentClient.connect(port, "myclient", wrongToken, 5000, 5000, 1)).isNull();
+    assertThat(BlameAgentClient.connect(port, "myclient", new File(temp.getRoot(), "missing"), 5000, 5000, 1)).isNull();
+  }
+
+  @Test
+  public void refuseOtherWorkspaces() throws Exception {
+    BlameAgentClient otherClient = BlameAgentClient.connect(port, "otherclient", tokenFile, 5000, 5000, 1);
+    try {
+      otherClient.fetch(inputFile(temp.newFile("Foo.java")));
+      fail("Expected the agent to refuse another workspace");
+    } catch (IOException e) {
+      assertThat(e).hasMessageContaining("status 403");
+    } finally {
+      otherClient.close();
+    }
+    verify(server, never()).getClient("otherclient");
+  }
+
+  @Test
+  public void noAgent() throws Exception {
+    File stoppedTokenFile = new File(temp.newFolder(), "agent.token");
+    BlameAgent stopped = new BlameAgent(command, Collections.singletonList(server), "myclient", stoppedTokenFile);
+    int stoppedPort = stopped.start(0);
+    // Keep the token to check that the stopped agent does not answer
+    Files.copy(stoppedTokenFile.toPath(), temp.getRoot().toPath().resolve("copy.token"));
+    stopped.stop();
+
+    assertThat(stoppedTokenFile).doesNotExist();
+    File copy = new File(temp.getRoot(), "copy.token");
+    assertThat(BlameAgentClient.connect(stoppedPort, "myclient", copy, 5000, 5000, 1)).isNull();
+  }
+
+  private static InputFile inputFile(File file) {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.uri()).thenReturn(file.toURI());
+    return inputFile;
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+
+public class BlameCostsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void largestFilesFirst() {
+    InputFile small = file("small", 10);
+    InputFile big = file("big", 5000);
+    InputFile medium = file("medium", 300);
+
+    assertThat(BlameCosts.load(null).schedule(Arrays.asList(small, big, medium))).containsExactly(big, medium, small);
+  }
+
+  @Test
+  public void durationsRecordedByPreviousRunWin() throws Exception {
+    InputFile small = file("small", 10);
+    InputFile big = file("big", 5000);
+
+    BlameCosts previous = BlameCosts.load(temp.getRoot());
+    previous.schedule(Arrays.asList(small, big));
+    // Small file with a very long history
+    previous.record(small, 2000);
+    previous.record(big, 100);
+    previous.save();
+
+    BlameCosts costs = BlameCosts.load(temp.getRoot());
+    assertThat(costs.schedule(Arrays.asList(big, small))).containsExactly(small, big);
+    assertThat(costs.estimate(small)).isEqualTo(2000);
+  }
+
+  @Test
+  public void unknownFilesAreScaledFromPreviousDurations() throws Exception {
+    InputFile known = file("known", 100);
+    InputFile added = file("added", 300);
+
+    BlameCosts previous = BlameCosts.load(temp.getRoot());
+    previous.record(known, 50);
+    previous.save();
+
+    BlameCosts costs = BlameCosts.load(temp.getRoot());
+    costs.schedule(Arrays.asList(known, added));
+    assertThat(costs.estimate(added)).isEqualTo(150);
+  }
+
+  private static InputFile file(String name, int lines) {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.lines()).thenReturn(lines);
+    when(inputFile.toString()).thenReturn(name);
+    return inputFile;
+  }
+}
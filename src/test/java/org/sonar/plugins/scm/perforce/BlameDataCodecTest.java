@@ -0,0 +1,108 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+
+public class BlameDataCodecTest {
+
+  @Test
+  public void roundTrip() throws Exception {
+    Map<Integer, BlameLine> lines = new HashMap<Integer, BlameLine>();
+    lines.put(12345, new BlameLine().revision("12345").date(new Date(1000)).author("jhenry"));
+    lines.put(7, new BlameLine().revision("7").date(new Date(2000)).author("bgates"));
+    int[] changelistIds = {12345, 12345, 12345, 7, 99, 12345};
+
+    byte[] bytes = BlameDataCodec.encode(new FileBlameData(changelistIds, lines));
+    FileBlameData data = BlameDataCodec.decode(bytes);
+
+    assertThat(data.changelistIds).containsExactly(changelistIds);
+    // Changelist 99 could not be resolved
+    assertThat(data.linesByChangelistId).containsOnlyKeys(12345, 7);
+    assertThat(data.linesByChangelistId.get(7)).isEqualTo(lines.get(7));
+  }
+
+  @Test
+  public void runsAreCompact() {
+    int[] changelistIds = new int[10000];
+    byte[] bytes = BlameDataCodec.encode(new FileBlameData(changelistIds, new HashMap<Integer, BlameLine>()));
+    assertThat(bytes.length).isLessThan(10);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsHugeRuns() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    BlameDataCodec.writeVarInt(out, 0);
+    BlameDataCodec.writeVarInt(out, 2);
+    BlameDataCodec.writeVarInt(out, 0);
+    BlameDataCodec.writeVarInt(out, BlameDataCodec.MAX_LINES);
+    BlameDataCodec.writeVarInt(out, 0);
+    BlameDataCodec.writeVarInt(out, 1);
+
+    BlameDataCodec.decode(bytes.toByteArray());
+  }
+
+  @Test
+  public void rejectsInvalidIndices() throws Exception {
+    for (int index : new int[] {1, -1}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      BlameDataCodec.writeVarInt(out, 1);
+      BlameDataCodec.writeChangelist(out, 3, null);
+      BlameDataCodec.writeVarInt(out, 1);
+      BlameDataCodec.writeVarInt(out, index);
+      BlameDataCodec.writeVarInt(out, 1);
+      try {
+        BlameDataCodec.decode(bytes.toByteArray());
+        fail("Expected exception");
+      } catch (IOException e) {
+        assertThat(e.getMessage()).contains("Invalid changelist index");
+      }
+    }
+  }
+
+  @Test
+  public void varInts() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    int[] values = {0, 1, 127, 128, 300, Integer.MAX_VALUE};
+    for (int value : values) {
+      BlameDataCodec.writeVarInt(out, value);
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    for (int value : values) {
+      assertThat(BlameDataCodec.readVarInt(in)).isEqualTo(value);
+    }
+  }
+}
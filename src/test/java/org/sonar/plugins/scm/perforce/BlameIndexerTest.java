@@ -0,0 +1,156 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import com.perforce.p4java.core.IChangelistSummary;
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.option.server.GetChangelistsOptions;
+import com.perforce.p4java.option.server.GetDepotFilesOptions;
+import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class BlameIndexerTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void followSubmittedChangelists() throws Exception {
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = mock(PerforceBlameCommand.class);
+    File indexDir = temp.newFolder();
+    BlameIndexer indexer = new BlameIndexer(server, command, "//depot/project/...", indexDir);
+
+    List<IChangelistSummary> initial = Collections.singletonList(changelist(5));
+    List<IChangelistSummary> submitted = Arrays.asList(changelist(7), changelist(6));
+    when(server.getChangelists((List<IFileSpec>) (List<?>) anyList(), any(GetChangelistsOptions.class)))
+      .thenReturn(initial)
+      .thenReturn(submitted);
+    List<IFileSpec> head = Arrays.asList(depotFile("//depot/project/Foo.java", 2), depotFile("//depot/project/Bar.java", 1));
+    List<IFileSpec> changelist6 = Collections.singletonList(depotFile("//depot/project/Foo.java", 3));
+    when(server.getDepotFiles((List<IFileSpec>) (List<?>) anyList(), any(GetDepotFilesOptions.class)))
+      .thenReturn(head)
+      .thenReturn(changelist6)
+      .thenReturn(Collections.<IFileSpec>emptyList());
+    when(command.annotate(any(IFileSpec.class), anyString(), eq(server), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(new FileBlameData(new int[] {5}, new HashMap<Integer, BlameLine>()));
+
+    assertThat(indexer.update()).isEqualTo(2);
+    assertThat(BlameIndexer.readCounter(indexDir)).isEqualTo(5);
+
+    assertThat(indexer.update()).isEqualTo(1);
+    assertThat(BlameIndexer.readCounter(indexDir)).isEqualTo(7);
+
+    LocalBlameCache index = new LocalBlameCache(indexDir);
+    assertThat(index.get("//depot/project/Foo.java").revision).isEqualTo(3);
+    assertThat(index.get("//depot/project/Bar.java").revision).isEqualTo(1);
+  }
+
+  @Test
+  public void daemonConnectsAgainAfterConnectionFailures() throws Exception {
+    PerforceExecutor lost = executor();
+    PerforceExecutor reconnected = executor();
+    Iterator<Object> connections = Arrays.<Object>asList(lost, new IllegalStateException("Unable to connect"),
+      reconnected).iterator();
+    Supplier<PerforceExecutor> connector = () -> {
+      Object next = connections.next();
+      if (next instanceof RuntimeException) {
+        throw (RuntimeException) next;
+      }
+      return (PerforceExecutor) next;
+    };
+    BlameIndexer lostIndexer = mock(BlameIndexer.class);
+    when(lostIndexer.update()).thenThrow(new ConnectionException("Connection reset"));
+    BlameIndexer indexer = mock(BlameIndexer.class);
+    when(indexer.update()).thenThrow(new IOException("Disk full")).thenAnswer(invocation -> {
+      // Stops the daemon at its next wait
+      Thread.currentThread().interrupt();
+      return 0;
+    });
+    Function<IOptionsServer, BlameIndexer> indexers = server -> server == lost.getServer() ? lostIndexer : indexer;
+
+    try {
+      BlameIndexer.runDaemon(connector, indexers, 1);
+      fail("Expected the daemon to stop when interrupted");
+    } catch (InterruptedException e) {
+      // expected
+    }
+
+    verify(lost).clean();
+    verify(indexer, times(2)).update();
+    verify(reconnected).clean();
+  }
+
+  @Test
+  public void emptyIndexHasNoCounter() throws Exception {
+    assertThat(BlameIndexer.readCounter(temp.newFolder())).isZero();
+  }
+
+  private static PerforceExecutor executor() {
+    PerforceExecutor executor = mock(PerforceExecutor.class);
+    IOptionsServer server = mock(IOptionsServer.class);
+    when(executor.getServer()).thenReturn(server);
+    return executor;
+  }
+
+  private static IChangelistSummary changelist(int id) {
+    IChangelistSummary changelist = mock(IChangelistSummary.class);
+    when(changelist.getId()).thenReturn(id);
+    return changelist;
+  }
+
+  private static IFileSpec depotFile(String depotPath, int revision) {
+    IFileSpec spec = mock(IFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(spec.getDepotPathString()).thenReturn(depotPath);
+    when(spec.getEndRevision()).thenReturn(revision);
+    when(spec.getAction()).thenReturn(FileAction.EDIT);
+    return spec;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public class BlameJournalTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void replayRecordsOfPreviousAttempt() throws Exception {
+    File stateDir = temp.newFolder();
+    InputFile foo = inputFile("Foo.java");
+    InputFile bar = inputFile("Bar.java");
+
+    BlameJournal journal = BlameJournal.open(stateDir);
+    assertThat(journal.replay(foo)).isNull();
+    journal.append(foo, data(3));
+    journal.append(bar, data(5));
+    journal.close();
+
+    journal = BlameJournal.open(stateDir);
+    assertThat(journal.replay(foo).changelistIds).containsExactly(3, 3);
+    assertThat(journal.replay(foo).linesByChangelistId.get(3).author()).isEqualTo("jhenry");
+    assertThat(journal.replay(bar).changelistIds).containsExactly(5, 5);
+    journal.close();
+  }
+
+  @Test
+  public void survivesWipedWorkDirectory() throws Exception {
+    File baseDir = temp.newFolder();
+    File workDir = new File(baseDir, ".scannerwork");
+    MapSettings settings = new MapSettings();
+    settings.setProperty("sonar.perforce.stateDir", temp.newFolder().getAbsolutePath());
+    settings.setProperty("sonar.perforce.clientName", "myclient");
+    PerforceConfiguration config = new PerforceConfiguration(new ConfigurationBridge(settings));
+    InputFile foo = inputFile("Foo.java");
+
+    assertThat(workDir.mkdirs()).isTrue();
+    BlameJournal journal = BlameJournal.open(StateDirectory.of(config, baseDir));
+    journal.append(foo, data(3));
+    journal.close();
+    // the scanner wipes its work directory when the next analysis starts
+    assertThat(workDir.list()).isEmpty();
+    assertThat(workDir.delete()).isTrue();
+
+    journal = BlameJournal.open(StateDirectory.of(config, baseDir));
+    assertThat(journal.replay(foo).changelistIds).containsExactly(3, 3);
+    journal.close();
+  }
+
+  @Test
+  public void dropTornRecord() throws Exception {
+    File stateDir = temp.newFolder();
+    InputFile foo = inputFile("Foo.java");
+    InputFile bar = inputFile("Bar.java");
+    InputFile baz = inputFile("Baz.java");
+
+    BlameJournal journal = BlameJournal.open(stateDir);
+    journal.append(foo, data(3));
+    journal.append(bar, data(5));
+    journal.close();
+    File file = new File(stateDir, BlameJournal.FILENAME);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+
+    journal = BlameJournal.open(stateDir);
+    assertThat(journal.replay(foo)).isNotNull();
+    assertThat(journal.replay(bar)).isNull();
+    journal.append(baz, data(7));
+    journal.close();
+
+    journal = BlameJournal.open(stateDir);
+    assertThat(journal.replay(foo)).isNotNull();
+    assertThat(journal.replay(baz).changelistIds).containsExactly(7, 7);
+    journal.close();
+  }
+
+  @Test
+  public void ignoreFilesChangedSincePreviousAttempt() throws Exception {
+    File stateDir = temp.newFolder();
+    File localFile = temp.newFile("Foo.java");
+    InputFile foo = mock(InputFile.class);
+    when(foo.uri()).thenReturn(localFile.toURI());
+    when(foo.toString()).thenReturn("Foo.java");
+
+    BlameJournal journal = BlameJournal.open(stateDir);
+    journal.append(foo, data(3));
+    journal.close();
+    assertThat(localFile.setLastModified(localFile.lastModified() - 10000)).isTrue();
+
+    journal = BlameJournal.open(stateDir);
+    assertThat(journal.replay(foo)).isNull();
+    journal.close();
+  }
+
+  @Test
+  public void deleteJournalOnCompletion() throws Exception {
+    File stateDir = temp.newFolder();
+    BlameJournal journal = BlameJournal.open(stateDir);
+    journal.append(inputFile("Foo.java"), data(3));
+    journal.complete();
+
+    assertThat(new File(stateDir, BlameJournal.FILENAME)).doesNotExist();
+  }
+
+  private static InputFile inputFile(String name) {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.toString()).thenReturn(name);
+    return inputFile;
+  }
+
+  private static FileBlameData data(int changelistId) {
+    Map<Integer, BlameLine> lines = new HashMap<Integer, BlameLine>();
+    lines.put(changelistId, new BlameLine().revision(String.valueOf(changelistId)).date(new Date(1000)).author("jhenry"));
+    return new FileBlameData(new int[] {changelistId, changelistId}, lines);
+  }
+}
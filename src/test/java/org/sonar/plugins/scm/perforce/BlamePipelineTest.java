@@ -0,0 +1,144 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
+import org.sonar.api.batch.scm.BlameLine;
+
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class BlamePipelineTest {
+
+  private final PerforceBlameCommand command = mock(PerforceBlameCommand.class);
+  private final IOptionsServer server = mock(IOptionsServer.class);
+  private final BlameOutput output = mock(BlameOutput.class);
+
+  @Test
+  public void emitsFetchedFilesInInputOrder() throws Exception {
+    InputFile file1 = mock(InputFile.class);
+    InputFile file2 = mock(InputFile.class);
+    InputFile notSubmitted = mock(InputFile.class);
+    FileBlameData data1 = data(file1);
+    FileBlameData data2 = data(file2);
+    when(command.fetch(file1, server)).thenReturn(data1);
+    when(command.fetch(notSubmitted, server)).thenReturn(null);
+    when(command.fetch(file2, server)).thenReturn(data2);
+
+    new BlamePipeline(command, Collections.singletonList(fetch(server)), null, output, BlameCosts.load(null)).run(Arrays.asList(file1, notSubmitted, file2));
+
+    InOrder inOrder = inOrder(command);
+    inOrder.verify(command).emit(file1, data1, output);
+    inOrder.verify(command).emit(file2, data2, output);
+  }
+
+  @Test
+  public void failureIsRethrownAfterPreviousFilesAreEmitted() throws Exception {
+    InputFile file1 = mock(InputFile.class);
+    InputFile broken = mock(InputFile.class);
+    InputFile file3 = mock(InputFile.class);
+    FileBlameData data1 = data(file1);
+    when(command.fetch(file1, server)).thenReturn(data1);
+    when(command.fetch(broken, server)).thenThrow(new ConnectionException("connection lost"));
+
+    try {
+      new BlamePipeline(command, Collections.singletonList(fetch(server)), null, output, BlameCosts.load(null)).run(Arrays.asList(file1, broken, file3));
+      fail("Expected failure");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("connection lost");
+      assertThat(e.getCause()).isInstanceOf(ConnectionException.class);
+    }
+
+    verify(command).emit(file1, data1, output);
+    verify(command, never()).fetch(file3, server);
+  }
+
+  @Test
+  public void emitFailureStopsFetchStage() throws Exception {
+    InputFile file1 = mock(InputFile.class);
+    FileBlameData data1 = data(file1);
+    when(command.fetch(any(InputFile.class), any(IOptionsServer.class))).thenReturn(data1);
+    doThrow(new IllegalArgumentException("bad lines")).when(command).emit(file1, data1, output);
+
+    try {
+      new BlamePipeline(command, Collections.singletonList(fetch(server)), null, output, BlameCosts.load(null)).run(Collections.nCopies(1000, file1));
+      fail("Expected failure");
+    } catch (IllegalArgumentException e) {
+      assertThat(e).hasMessage("bad lines");
+    }
+  }
+
+  @Test
+  public void workersShareTheFiles() throws Exception {
+    IOptionsServer otherServer = mock(IOptionsServer.class);
+    InputFile file1 = mock(InputFile.class);
+    InputFile file2 = mock(InputFile.class);
+    InputFile file3 = mock(InputFile.class);
+    when(command.fetch(any(InputFile.class), any(IOptionsServer.class))).thenReturn(data(file1));
+
+    new BlamePipeline(command, Arrays.asList(fetch(server), fetch(otherServer)), null, output, BlameCosts.load(null))
+      .run(Arrays.asList(file1, file2, file3));
+
+    verify(command, times(3)).emit(any(InputFile.class), any(FileBlameData.class), eq(output));
+  }
+
+  @Test
+  public void recordsCostsOnlyOfServerFetches() throws Exception {
+    InputFile cached = mock(InputFile.class);
+    InputFile annotated = mock(InputFile.class);
+    when(command.fetch(cached, server)).thenReturn(data(cached));
+    when(command.fetch(annotated, server)).thenReturn(new FileBlameData(new int[0], new HashMap<Integer, BlameLine>(), true));
+    BlameCosts costs = mock(BlameCosts.class);
+    when(costs.schedule(any())).thenReturn(Arrays.asList(cached, annotated));
+
+    new BlamePipeline(command, Collections.singletonList(fetch(server)), null, output, costs).run(Arrays.asList(cached, annotated));
+
+    verify(costs).record(eq(annotated), anyLong());
+    verify(costs, never()).record(eq(cached), anyLong());
+  }
+
+  private BlamePipeline.Fetch fetch(IOptionsServer server) {
+    return inputFile -> command.fetch(inputFile, server);
+  }
+
+  private static FileBlameData data(InputFile inputFile) {
+    return new FileBlameData(new int[0], new HashMap<Integer, BlameLine>());
+  }
+}
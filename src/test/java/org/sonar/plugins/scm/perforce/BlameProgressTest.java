@@ -0,0 +1,100 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.ICommandCallback;
+
+public class BlameProgressTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void registerWhileBlaming() throws Exception {
+    File baseDir = temp.newFolder();
+    ObjectName name = BlameProgress.objectName(baseDir);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+    BlameProgress progress = BlameProgress.register(baseDir);
+    assertThat(progress.isRegistered()).isTrue();
+    progress.start(Arrays.asList("a", "b", "c"));
+    progress.fileDone();
+    assertThat(server.getAttribute(name, "FilesTotal")).isEqualTo(3);
+    assertThat(server.getAttribute(name, "FilesRemaining")).isEqualTo(2);
+
+    progress.unregister();
+    assertThat(server.isRegistered(name)).isFalse();
+  }
+
+  @Test
+  public void filesAndCacheHits() {
+    BlameProgress progress = new BlameProgress();
+    progress.start(Arrays.asList("a", "b", "c", "d"));
+    assertThat(progress.getEtaSeconds()).isEqualTo(-1);
+
+    progress.fileDone();
+    progress.cacheHit();
+    progress.fileDone();
+
+    assertThat(progress.getFilesDone()).isEqualTo(2);
+    assertThat(progress.getFilesRemaining()).isEqualTo(2);
+    assertThat(progress.getFilesPerSecond()).isPositive();
+    assertThat(progress.getEtaSeconds()).isGreaterThanOrEqualTo(0);
+    assertThat(progress.getCacheHits()).isEqualTo(1);
+    assertThat(progress.getCacheHitRate()).isEqualTo(0.5);
+  }
+
+  @Test
+  public void oldestCommandInFlight() throws Exception {
+    BlameProgress progress = new BlameProgress();
+    IOptionsServer connected = mock(IOptionsServer.class);
+    when(connected.isConnected()).thenReturn(true);
+    ICommandCallback tracker1 = progress.commandTracker(connected);
+    ICommandCallback tracker2 = progress.commandTracker(mock(IOptionsServer.class));
+    assertThat(progress.getInFlightCommand()).isNull();
+    assertThat(progress.getInFlightCommandAgeMillis()).isZero();
+
+    tracker1.issuingServerCommand(1, "annotate //depot/Foo.java#have");
+    Thread.sleep(5);
+    tracker2.issuingServerCommand(1, "filelog //depot/Bar.java#have");
+    assertThat(progress.getInFlightCommand()).isEqualTo("annotate //depot/Foo.java#have");
+    assertThat(progress.getInFlightCommandAgeMillis()).isGreaterThanOrEqualTo(5);
+
+    tracker1.completedServerCommand(1, 5);
+    assertThat(progress.getInFlightCommand()).isEqualTo("filelog //depot/Bar.java#have");
+    assertThat(progress.getConnectionState()).isEqualTo("1/2 connected");
+  }
+}
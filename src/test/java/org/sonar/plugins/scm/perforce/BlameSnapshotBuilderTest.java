@@ -0,0 +1,112 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.client.HttpClients;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.Configuration;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.option.server.GetDepotFilesOptions;
+import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class BlameSnapshotBuilderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void annotateEveryFileAtRevision() throws Exception {
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = mock(PerforceBlameCommand.class);
+    IFileSpec foo = depotFile("//depot/project/Foo.java", 3, FileAction.EDIT);
+    IFileSpec deleted = depotFile("//depot/project/Old.java", 2, FileAction.DELETE);
+    when(server.getDepotFiles((List<IFileSpec>) (List<?>) anyList(), any(GetDepotFilesOptions.class)))
+      .thenReturn(Arrays.asList(foo, deleted));
+    when(command.annotate(any(IFileSpec.class), eq("//depot/project/Foo.java"), eq(server), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(new FileBlameData(new int[] {7, 7}, new HashMap<Integer, BlameLine>()));
+
+    File file = temp.newFile();
+    new BlameSnapshotBuilder(server, command).build("//depot/project/...@REL_1_0").write(file);
+
+    BlameSnapshot snapshot = BlameSnapshot.load(file);
+    assertThat(snapshot.size()).isEqualTo(1);
+    assertThat(snapshot.get("//depot/project/Foo.java", 3).changelistIds).containsExactly(7, 7);
+  }
+
+  /**
+   * The classpath documented in the README: plugin classes, their dependencies and the plugin API.
+   */
+  @Test
+  public void runsOnTheDocumentedClasspath() throws Exception {
+    StringBuilder classpath = new StringBuilder();
+    for (Class<?> type : Arrays.asList(BlameSnapshotBuilder.class, Configuration.class, IOptionsServer.class,
+      Logger.class, LogFactory.class, StringUtils.class, VisibleForTesting.class, HttpClients.class, HttpStatus.class)) {
+      classpath.append(new File(type.getProtectionDomain().getCodeSource().getLocation().toURI())).append(File.pathSeparator);
+    }
+    File output = temp.newFile();
+    Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+      "-Dsonar.perforce.port=localhost:1", "-cp", classpath.toString(), BlameSnapshotBuilder.class.getName(),
+      "//depot/project/...@REL_1_0", temp.newFile().getPath())
+        .redirectErrorStream(true)
+        .redirectOutput(output)
+        .start();
+
+    assertThat(process.waitFor(60, TimeUnit.SECONDS)).isTrue();
+    String log = new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8);
+    assertThat(log).contains("Unable to connect to Perforce server at localhost:1").doesNotContain("NoClassDefFoundError");
+  }
+
+  private static IFileSpec depotFile(String depotPath, int revision, FileAction action) {
+    IFileSpec spec = mock(IFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(spec.getDepotPathString()).thenReturn(depotPath);
+    when(spec.getEndRevision()).thenReturn(revision);
+    when(spec.getAction()).thenReturn(action);
+    return spec;
+  }
+}
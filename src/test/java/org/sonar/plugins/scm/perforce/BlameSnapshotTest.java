@@ -0,0 +1,114 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+public class BlameSnapshotTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void writeAndLoad() throws Exception {
+    Map<Integer, BlameLine> lines = new HashMap<Integer, BlameLine>();
+    lines.put(3, new BlameLine().revision("3").date(new Date(1000)).author("jhenry"));
+    lines.put(4, new BlameLine().revision("4").date(new Date(2000)).author("bgates"));
+
+    BlameSnapshot.Writer writer = new BlameSnapshot.Writer("//depot/project/...@REL_1_0");
+    writer.add("//depot/project/Foo.java", 2, new FileBlameData(new int[] {3, 3, 4}, lines));
+    writer.add("//depot/project/Bar.java", 1, new FileBlameData(new int[] {4, 5}, lines));
+    File file = temp.newFile();
+    writer.write(file);
+
+    BlameSnapshot snapshot = BlameSnapshot.load(file);
+    assertThat(snapshot.source()).isEqualTo("//depot/project/...@REL_1_0");
+    assertThat(snapshot.size()).isEqualTo(2);
+
+    FileBlameData foo = snapshot.get("//depot/project/Foo.java", 2);
+    assertThat(foo.changelistIds).containsExactly(3, 3, 4);
+    assertThat(foo.linesByChangelistId.get(3)).isEqualTo(lines.get(3));
+
+    FileBlameData bar = snapshot.get("//depot/project/Bar.java", 1);
+    assertThat(bar.changelistIds).containsExactly(4, 5);
+    assertThat(bar.linesByChangelistId.get(5)).isNull();
+  }
+
+  @Test
+  public void onlyAnswersForSnapshotRevision() throws Exception {
+    BlameSnapshot.Writer writer = new BlameSnapshot.Writer("//depot/project/...@42");
+    writer.add("//depot/project/Foo.java", 2, new FileBlameData(new int[] {3}, new HashMap<Integer, BlameLine>()));
+    File file = temp.newFile();
+    writer.write(file);
+
+    BlameSnapshot snapshot = BlameSnapshot.load(file);
+    assertThat(snapshot.get("//depot/project/Foo.java", 3)).isNull();
+    assertThat(snapshot.get("//depot/project/Other.java", 2)).isNull();
+  }
+
+  @Test
+  public void ignoreInvalidFile() throws Exception {
+    File file = temp.newFile();
+    Files.write(file.toPath(), "not a snapshot".getBytes("UTF-8"));
+    assertThat(BlameSnapshot.load(file)).isNull();
+    assertThat(BlameSnapshot.load(new File(temp.getRoot(), "missing"))).isNull();
+  }
+
+  @Test
+  public void ignoreCorruptedSizes() throws Exception {
+    // negative dictionary size
+    assertThat(BlameSnapshot.load(snapshot(0xFF, 0xFF, 0xFF, 0xFF, 0x0F))).isNull();
+    // huge dictionary size
+    assertThat(BlameSnapshot.load(snapshot(0xFF, 0xFF, 0xFF, 0xFF, 0x07))).isNull();
+    // empty dictionary, one file with huge runs
+    assertThat(BlameSnapshot.load(snapshot(0, 1, 0, 1, 'F', 2, 0xFF, 0xFF, 0xFF, 0xFF, 0x07))).isNull();
+    // empty dictionary, negative file count
+    assertThat(BlameSnapshot.load(snapshot(0, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F))).isNull();
+    // truncated
+    assertThat(BlameSnapshot.load(snapshot(0, 3))).isNull();
+  }
+
+  private File snapshot(int... content) throws IOException {
+    File file = temp.newFile();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      out.writeInt(BlameSnapshot.MAGIC);
+      out.writeInt(BlameSnapshot.VERSION);
+      out.writeUTF("//depot/project/...@42");
+      for (int b : content) {
+        out.writeByte(b);
+      }
+    }
+    return file;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.sonar.api.batch.scm.BlameLine;
+
+import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.MessageSeverityCode;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class ChangelistCacheTest {
+
+  private final IOptionsServer server = mock(IOptionsServer.class);
+  private final ChangelistCache cache = new ChangelistCache();
+
+  @Test
+  public void fetchChangelistOnce() throws Exception {
+    Date date = new Date();
+    IChangelist changelist = changelist(date);
+    when(server.getChangelist(3)).thenReturn(changelist);
+
+    assertThat(cache.get(server, 3)).isEqualTo(new BlameLine().revision("3").date(date).author("jhenry"));
+    assertThat(cache.get(server, 3)).isEqualTo(new BlameLine().revision("3").date(date).author("jhenry"));
+
+    verify(server, times(1)).getChangelist(3);
+  }
+
+  @Test
+  public void rememberUnknownChangelists() throws Exception {
+    when(server.getChangelist(3)).thenReturn(null);
+    when(server.getChangelist(4)).thenThrow(new RequestException("Change 4 unknown."));
+
+    assertThat(cache.get(server, 3)).isNull();
+    assertThat(cache.get(server, 3)).isNull();
+    assertThat(cache.get(server, 4)).isNull();
+    assertThat(cache.get(server, 4)).isNull();
+
+    verify(server, times(1)).getChangelist(3);
+    verify(server, times(1)).getChangelist(4);
+  }
+
+  @Test
+  public void retryAfterOtherRequestFailures() throws Exception {
+    IChangelist changelist = changelist(new Date());
+    when(server.getChangelist(3))
+      .thenThrow(new RequestException("You don't have permission for this operation.", MessageGenericCode.EV_PROTECT,
+        MessageSeverityCode.E_FAILED))
+      .thenReturn(changelist);
+
+    try {
+      cache.get(server, 3);
+      fail("Expected exception");
+    } catch (RequestException e) {
+      assertThat(e.getGenericCode()).isEqualTo(MessageGenericCode.EV_PROTECT);
+    }
+    assertThat(cache.get(server, 3)).isNotNull();
+    assertThat(cache.fetches()).isEqualTo(2);
+  }
+
+  @Test
+  public void retryAfterConnectionFailure() throws Exception {
+    Date date = new Date();
+    IChangelist changelist = changelist(date);
+    when(server.getChangelist(3)).thenThrow(new ConnectionException("reset")).thenReturn(changelist);
+
+    try {
+      cache.get(server, 3);
+      fail("Expected exception");
+    } catch (ConnectionException e) {
+      assertThat(e).hasMessage("reset");
+    }
+    assertThat(cache.get(server, 3)).isNotNull();
+    assertThat(cache.fetches()).isEqualTo(2);
+  }
+
+  @Test
+  public void concurrentRequestsShareTheFetch() throws Exception {
+    final CountDownLatch fetching = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final IChangelist changelist = changelist(new Date());
+    when(server.getChangelist(3)).thenAnswer(invocation -> {
+      fetching.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return changelist;
+    });
+
+    final List<BlameLine> results = new ArrayList<BlameLine>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 4; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          BlameLine line = cache.get(server, 3);
+          synchronized (results) {
+            results.add(line);
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    assertThat(fetching.await(5, TimeUnit.SECONDS)).isTrue();
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(results).hasSize(4).doesNotContainNull();
+    verify(server, times(1)).getChangelist(3);
+  }
+
+  private static IChangelist changelist(Date date) {
+    IChangelist changelist = mock(IChangelist.class);
+    when(changelist.getDate()).thenReturn(date);
+    when(changelist.getUsername()).thenReturn("jhenry");
+    return changelist;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.perforce.p4java.server.callback.ICommandCallback;
+
+public class CommandStatsTest {
+
+  private final CommandStats commandStats = new CommandStats();
+
+  @Test
+  public void countCommandsOfEachKind() {
+    ICommandCallback counter = commandStats.forConnection();
+
+    counter.issuingServerCommand(1, "annotate -c -dw //depot/Foo.java#have");
+    counter.completedServerCommand(1, 10);
+    counter.issuingServerCommand(2, "annotate -c -dw //depot/Bar.java#have");
+    counter.completedServerCommand(2, 30);
+    counter.issuingServerCommand(3, "filelog");
+    counter.completedServerCommand(3, 5);
+
+    Map<String, long[]> totals = commandStats.totals();
+    assertThat(totals.keySet()).containsExactly("annotate", "filelog");
+    assertThat(totals.get("annotate")).containsExactly(2, 40);
+    assertThat(totals.get("filelog")).containsExactly(1, 5);
+  }
+
+  @Test
+  public void keysAreOnlyUniquePerConnection() {
+    ICommandCallback first = commandStats.forConnection();
+    ICommandCallback second = commandStats.forConnection();
+
+    first.issuingServerCommand(1, "annotate");
+    second.issuingServerCommand(1, "filelog");
+    first.completedServerCommand(1, 10);
+    second.completedServerCommand(1, 20);
+
+    assertThat(commandStats.totals().get("annotate")).containsExactly(1, 10);
+    assertThat(commandStats.totals().get("filelog")).containsExactly(1, 20);
+  }
+
+  @Test
+  public void ignoreUnknownCommands() {
+    commandStats.forConnection().completedServerCommand(1, 10);
+    assertThat(commandStats.totals()).isEmpty();
+  }
+}
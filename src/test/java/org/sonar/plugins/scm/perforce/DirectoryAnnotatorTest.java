@@ -0,0 +1,191 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileAnnotation;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
+import com.perforce.p4java.option.server.GetRevisionHistoryOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class DirectoryAnnotatorTest {
+
+  private static final String DIRECTORY = "//depot/project/src";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final IOptionsServer server = mock(IOptionsServer.class);
+  private final PerforceBlameCommand command = new PerforceBlameCommand(mock(PerforceConfiguration.class));
+
+  @Test
+  public void planDirectoriesAboveThreshold() throws Exception {
+    Map<InputFile, IExtendedFileSpec> haveRevisions = new HashMap<InputFile, IExtendedFileSpec>();
+    File full = temp.newFolder("full");
+    for (int i = 0; i < 4; i++) {
+      haveRevisions.put(inputFile(full, "F" + i + ".java"), haveRevision("//depot/full/F" + i + ".java"));
+    }
+    File partial = temp.newFolder("partial");
+    for (int i = 0; i < 10; i++) {
+      File file = new File(partial, "P" + i + ".java");
+      if (i < 5) {
+        haveRevisions.put(inputFile(partial, file.getName()), haveRevision("//depot/partial/" + file.getName()));
+      } else {
+        assertThat(file.createNewFile()).isTrue();
+      }
+    }
+    File small = temp.newFolder("small");
+    haveRevisions.put(inputFile(small, "S.java"), haveRevision("//depot/small/S.java"));
+
+    DirectoryAnnotator annotator = DirectoryAnnotator.plan(command, haveRevisions, 80);
+
+    // Directories not planned need no server
+    assertThat(annotator.blame("//depot/partial/P0.java", server)).isNull();
+    assertThat(annotator.blame("//depot/small/S.java", server)).isNull();
+    verifyNoInteractions(server);
+    annotations(annotation("//depot/full/F0.java", 7));
+    history(revision(7));
+    assertThat(annotator.blame("//depot/full/F0.java", server).changelistIds).containsExactly(7);
+  }
+
+  @Test
+  public void annotateDirectoryOnceAndSplitByFile() throws Exception {
+    DirectoryAnnotator annotator = new DirectoryAnnotator(command, planned("A.java", "B.java"));
+    annotations(annotation(DIRECTORY + "/A.java", 3), annotation(DIRECTORY + "/B.java", 4),
+      annotation(DIRECTORY + "/A.java", 4), annotation(DIRECTORY + "/NotToBlame.java", 4));
+    history(revision(3), revision(4));
+
+    FileBlameData a = annotator.blame(DIRECTORY + "/A.java", server);
+    FileBlameData b = annotator.blame(DIRECTORY + "/B.java", server);
+
+    assertThat(a.changelistIds).containsExactly(3, 4);
+    assertThat(a.linesByChangelistId.get(3).author()).isEqualTo("jhenry");
+    assertThat(b.changelistIds).containsExactly(4);
+    // Each file is taken once
+    assertThat(annotator.blame(DIRECTORY + "/A.java", server)).isNull();
+    verify(server, times(1)).getFileAnnotations(anyList(), any(GetFileAnnotationsOptions.class));
+    verify(server, times(1)).getRevisionHistory(anyList(), any(GetRevisionHistoryOptions.class));
+    verify(server, times(0)).getChangelist(any(Integer.class));
+  }
+
+  @Test
+  public void fallbackOnServerLimits() throws Exception {
+    DirectoryAnnotator annotator = new DirectoryAnnotator(command, planned("A.java"));
+    when(server.getFileAnnotations(anyList(), any(GetFileAnnotationsOptions.class)))
+      .thenThrow(new RequestException("Request too large (over 50000); see 'p4 help maxresults'."));
+
+    assertThat(annotator.blame(DIRECTORY + "/A.java", server)).isNull();
+  }
+
+  @Test(expected = RequestException.class)
+  public void propagateOtherErrors() throws Exception {
+    DirectoryAnnotator annotator = new DirectoryAnnotator(command, planned("A.java"));
+    when(server.getFileAnnotations(anyList(), any(GetFileAnnotationsOptions.class)))
+      .thenThrow(new RequestException("Protections table is empty."));
+
+    annotator.blame(DIRECTORY + "/A.java", server);
+  }
+
+  @Test
+  public void directoryOfDepotPath() {
+    assertThat(DirectoryAnnotator.directory("//depot/a/B.java")).isEqualTo("//depot/a");
+  }
+
+  private static Map<String, Set<String>> planned(String... names) {
+    Set<String> paths = new HashSet<String>();
+    for (String name : names) {
+      paths.add(DIRECTORY + "/" + name);
+    }
+    return Collections.singletonMap(DIRECTORY, paths);
+  }
+
+  private static InputFile inputFile(File directory, String name) throws Exception {
+    File file = new File(directory, name);
+    assertThat(file.createNewFile()).isTrue();
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.uri()).thenReturn(file.toURI());
+    return inputFile;
+  }
+
+  private static IExtendedFileSpec haveRevision(String depotPath) {
+    IExtendedFileSpec spec = mock(IExtendedFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(spec.getDepotPathString()).thenReturn(depotPath);
+    when(spec.getHaveRev()).thenReturn(1);
+    return spec;
+  }
+
+  private void annotations(IFileAnnotation... annotations) throws Exception {
+    when(server.getFileAnnotations(anyList(), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(new ArrayList<IFileAnnotation>(Arrays.asList(annotations)));
+  }
+
+  private void history(IFileRevisionData... revisions) throws Exception {
+    Map<IFileSpec, List<IFileRevisionData>> history = new HashMap<IFileSpec, List<IFileRevisionData>>();
+    IFileSpec spec = mock(IFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    history.put(spec, Arrays.asList(revisions));
+    when(server.getRevisionHistory(anyList(), any(GetRevisionHistoryOptions.class))).thenReturn(history);
+  }
+
+  private static IFileAnnotation annotation(String depotPath, int changelistId) {
+    IFileAnnotation annotation = mock(IFileAnnotation.class);
+    when(annotation.getDepotPath()).thenReturn(depotPath);
+    when(annotation.getLower()).thenReturn(changelistId);
+    return annotation;
+  }
+
+  private static IFileRevisionData revision(int changelistId) {
+    IFileRevisionData data = mock(IFileRevisionData.class);
+    when(data.getChangelistId()).thenReturn(changelistId);
+    when(data.getDate()).thenReturn(new Date(1000));
+    when(data.getUserName()).thenReturn("jhenry");
+    return data;
+  }
+}
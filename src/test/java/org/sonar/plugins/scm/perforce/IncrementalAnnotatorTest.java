@@ -0,0 +1,182 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.option.server.GetFileDiffsOptions;
+import com.perforce.p4java.option.server.GetRevisionHistoryOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class IncrementalAnnotatorTest {
+
+  private static final String DEPOT_PATH = "//depot/project/Foo.java";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final IOptionsServer server = mock(IOptionsServer.class);
+  private File cacheDir;
+  private LocalBlameCache localCache;
+  private IncrementalAnnotator annotator;
+
+  @Before
+  public void prepare() throws Exception {
+    cacheDir = temp.newFolder();
+    localCache = new LocalBlameCache(cacheDir);
+    annotator = new IncrementalAnnotator(localCache);
+    Map<Integer, BlameLine> lines = new HashMap<Integer, BlameLine>();
+    lines.put(3, new BlameLine().revision("3").date(new Date(1000)).author("jhenry"));
+    annotator.record(DEPOT_PATH, 1, new FileBlameData(new int[] {3, 3, 3}, lines));
+  }
+
+  @Test
+  public void applyRcsDiff() throws IOException {
+    int[] old = {1, 2, 3, 4, 5};
+    // Replace line 2, delete line 4, add two lines at the end
+    String diff = "==== //depot/Foo.java#1 (text) - //depot/Foo.java#2 (text) ==== content\n"
+      + "d2 1\n" + "a2 1\n" + "changed\n" + "d4 1\n" + "a5 2\n" + "new 1\n" + "new 2\n";
+    assertThat(IncrementalAnnotator.applyRcsDiff(old, new StringReader(diff), 9)).containsExactly(1, 9, 3, 5, 9, 9);
+  }
+
+  @Test
+  public void applyRcsDiffWithCarriageReturnInAddedLine() throws IOException {
+    String diff = "a1 2\n" + "old\rMac line\n" + "new\n";
+    assertThat(IncrementalAnnotator.applyRcsDiff(new int[] {1, 2}, new StringReader(diff), 9)).containsExactly(1, 9, 9, 2);
+  }
+
+  @Test
+  public void applyEmptyDiff() throws IOException {
+    assertThat(IncrementalAnnotator.applyRcsDiff(new int[] {1, 2}, new StringReader(""), 9)).containsExactly(1, 2);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectDiffNotMatchingRevision() throws IOException {
+    IncrementalAnnotator.applyRcsDiff(new int[] {1, 2}, new StringReader("d5 1\n"), 9);
+  }
+
+  @Test
+  public void blameFromCachedRevisionAndDiff() throws Exception {
+    IFileRevisionData revision2 = revision(2, 10, FileAction.EDIT);
+    history(revision2);
+    when(server.getFileDiffsStream(any(IFileSpec.class), any(IFileSpec.class), isNull(), any(GetFileDiffsOptions.class)))
+      .thenReturn(new ByteArrayInputStream("d2 1\na2 1\nchanged line\n".getBytes(StandardCharsets.UTF_8)));
+
+    FileBlameData data = annotator.blame(DEPOT_PATH, 2, server);
+
+    assertThat(data.changelistIds).containsExactly(3, 10, 3);
+    assertThat(data.linesByChangelistId.get(10).author()).isEqualTo("bgates");
+    assertThat(data.linesByChangelistId.get(3).author()).isEqualTo("jhenry");
+  }
+
+  @Test
+  public void sameRevisionNeedsNoServer() throws Exception {
+    FileBlameData data = annotator.blame(DEPOT_PATH, 1, server);
+    assertThat(data.changelistIds).containsExactly(3, 3, 3);
+    // So that it is not recorded again
+    assertThat(data.fromServer).isFalse();
+    verifyNoInteractions(server);
+  }
+
+  @Test
+  public void fallbackOnIntegration() throws Exception {
+    history(revision(2, 10, FileAction.INTEGRATE));
+    assertThat(annotator.blame(DEPOT_PATH, 2, server)).isNull();
+  }
+
+  @Test
+  public void fallbackWithoutCachedRevision() throws Exception {
+    assertThat(annotator.blame("//depot/project/Other.java", 2, server)).isNull();
+    assertThat(annotator.blame(DEPOT_PATH, 1 + IncrementalAnnotator.MAX_REVISIONS + 1, server)).isNull();
+    verifyNoInteractions(server);
+  }
+
+  @Test
+  public void recordReplacesCachedRevision() {
+    annotator.record(DEPOT_PATH, 4, new FileBlameData(new int[] {8}, new HashMap<Integer, BlameLine>()));
+    LocalBlameCache.RevisionBlame cached = localCache.get(DEPOT_PATH);
+    assertThat(cached.revision).isEqualTo(4);
+    assertThat(cached.data.changelistIds).containsExactly(8);
+  }
+
+  @Test
+  public void ignoreCorruptedCachedRevision() throws Exception {
+    File[] files = cacheDir.listFiles();
+    assertThat(files).hasSize(1);
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(files[0]))) {
+      out.writeUTF(DEPOT_PATH);
+      BlameDataCodec.writeVarInt(out, 1);
+      BlameDataCodec.writeVarInt(out, 1);
+      BlameDataCodec.writeChangelist(out, 3, null);
+      BlameDataCodec.writeVarInt(out, 1);
+      BlameDataCodec.writeVarInt(out, -1);
+      BlameDataCodec.writeVarInt(out, 3);
+    }
+
+    assertThat(localCache.get(DEPOT_PATH)).isNull();
+  }
+
+  private void history(IFileRevisionData... revisions) throws Exception {
+    Map<IFileSpec, List<IFileRevisionData>> history = new HashMap<IFileSpec, List<IFileRevisionData>>();
+    history.put(mock(IFileSpec.class), Arrays.asList(revisions));
+    when(server.getRevisionHistory((List<IFileSpec>) (List<?>) anyList(), any(GetRevisionHistoryOptions.class)))
+      .thenReturn(history);
+  }
+
+  private static IFileRevisionData revision(int revision, int changelistId, FileAction action) {
+    IFileRevisionData data = mock(IFileRevisionData.class);
+    when(data.getRevision()).thenReturn(revision);
+    when(data.getChangelistId()).thenReturn(changelistId);
+    when(data.getAction()).thenReturn(action);
+    when(data.getDate()).thenReturn(new Date(2000));
+    when(data.getUserName()).thenReturn("bgates");
+    when(data.getRevisionIntegrationData()).thenReturn(Collections.emptyList());
+    return data;
+  }
+}
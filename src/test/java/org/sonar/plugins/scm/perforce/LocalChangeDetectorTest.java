@@ -0,0 +1,124 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+
+public class LocalChangeDetectorTest {
+
+  // MD5 of "foo\nbar\n"
+  private static final String DIGEST = "F47C75614087A8DD938BA4ACFF252494";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void digest() throws Exception {
+    File lf = write("lf.txt", "foo\nbar\n");
+    File crlf = write("crlf.txt", "foo\r\nbar\r\n");
+    File cr = write("cr.txt", "foo\rbar\r");
+
+    assertThat(LocalChangeDetector.md5Hex(lf.toPath(), false)).isEqualTo(DIGEST);
+    assertThat(LocalChangeDetector.md5Hex(crlf.toPath(), false)).isNotEqualTo(DIGEST);
+    assertThat(LocalChangeDetector.md5Hex(crlf.toPath(), true)).isEqualTo(DIGEST);
+    assertThat(LocalChangeDetector.md5Hex(cr.toPath(), true)).isEqualTo(LocalChangeDetector.md5Hex(cr.toPath(), false));
+    assertThat(LocalChangeDetector.md5Hex(write("empty.txt", "").toPath(), false))
+      .isEqualTo("D41D8CD98F00B204E9800998ECF8427E");
+  }
+
+  @Test
+  public void comparableTypes() {
+    assertThat(LocalChangeDetector.isComparable("text")).isTrue();
+    assertThat(LocalChangeDetector.isComparable("text+x")).isTrue();
+    assertThat(LocalChangeDetector.isComparable("binary+F")).isTrue();
+    assertThat(LocalChangeDetector.isComparable("text+ko")).isFalse();
+    assertThat(LocalChangeDetector.isComparable("ktext")).isFalse();
+    assertThat(LocalChangeDetector.isComparable("utf16")).isFalse();
+    assertThat(LocalChangeDetector.isComparable("unicode")).isFalse();
+    assertThat(LocalChangeDetector.isComparable("symlink")).isFalse();
+    assertThat(LocalChangeDetector.isComparable(null)).isFalse();
+  }
+
+  @Test
+  public void detectModifiedFiles() throws Exception {
+    InputFile unchanged = inputFile(write("unchanged.txt", "foo\nbar\n"));
+    InputFile windows = inputFile(write("windows.txt", "foo\r\nbar\r\n"));
+    InputFile modified = inputFile(write("modified.txt", "foo\nbaz\n"));
+    InputFile binary = inputFile(write("binary.txt", "foo\r\nbar\r\n"));
+    InputFile keywords = inputFile(write("keywords.txt", "$Id: //depot/keywords.txt#1 $\n"));
+    InputFile missing = inputFile(new File(temp.getRoot(), "missing.txt"));
+
+    Map<InputFile, IExtendedFileSpec> haveRevisions = new HashMap<InputFile, IExtendedFileSpec>();
+    haveRevisions.put(unchanged, haveRevision("text", DIGEST));
+    haveRevisions.put(windows, haveRevision("text", DIGEST));
+    haveRevisions.put(modified, haveRevision("text", DIGEST));
+    haveRevisions.put(binary, haveRevision("binary", DIGEST));
+    haveRevisions.put(keywords, haveRevision("text+k", DIGEST));
+    haveRevisions.put(missing, haveRevision("text", DIGEST));
+
+    assertThat(LocalChangeDetector.modifiedFiles(haveRevisions)).containsOnly(modified, binary);
+  }
+
+  @Test
+  public void unknownDigestIsNotModified() throws Exception {
+    InputFile inputFile = inputFile(write("foo.txt", "foo\n"));
+    assertThat(LocalChangeDetector.isModified(inputFile, haveRevision("text", null))).isFalse();
+
+    IExtendedFileSpec error = haveRevision("text", DIGEST);
+    when(error.getOpStatus()).thenReturn(FileSpecOpStatus.ERROR);
+    assertThat(LocalChangeDetector.isModified(inputFile, error)).isFalse();
+  }
+
+  private File write(String name, String content) throws Exception {
+    File file = temp.newFile(name);
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+  private static InputFile inputFile(File file) {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.uri()).thenReturn(file.toURI());
+    return inputFile;
+  }
+
+  private static IExtendedFileSpec haveRevision(String type, String digest) {
+    IExtendedFileSpec spec = mock(IExtendedFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(spec.getHeadType()).thenReturn(type);
+    when(spec.getDigest()).thenReturn(digest);
+    return spec;
+  }
+}
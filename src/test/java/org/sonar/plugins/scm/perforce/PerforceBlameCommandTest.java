@@ -19,14 +19,20 @@
  */
 package org.sonar.plugins.scm.perforce;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.ArgumentMatchers.anyList;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -35,15 +41,21 @@ import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
 import org.sonar.api.batch.scm.BlameLine;
 
 import com.perforce.p4java.core.IChangelist;
 import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.core.file.IFileAnnotation;
 import com.perforce.p4java.core.file.IFileRevisionData;
 import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.MessageSeverityCode;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.option.server.GetExtendedFilesOptions;
 import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
 import com.perforce.p4java.option.server.GetRevisionHistoryOptions;
 import com.perforce.p4java.server.IOptionsServer;
@@ -63,6 +75,7 @@ public class PerforceBlameCommandTest {
       command.blame(mock(InputFile.class), server, blameOutput);
 
       verifyNoInteractions(blameOutput);
+      verify(server, never()).getRevisionHistory((List<IFileSpec>)(List<?>) anyList(), any(GetRevisionHistoryOptions.class));
     }
 
   @Test
@@ -133,6 +146,11 @@ public class PerforceBlameCommandTest {
 
     // Changelist 4 should have been fetched only once
     verify(server, times(1)).getChangelist(4);
+
+    // Without an annotate strategy, history is only fetched for files that annotate found submitted
+    InOrder inOrder = inOrder(server);
+    inOrder.verify(server).getFileAnnotations((List<IFileSpec>)(List<?>) anyList(), any(GetFileAnnotationsOptions.class));
+    inOrder.verify(server).getRevisionHistory((List<IFileSpec>)(List<?>) anyList(), any(GetRevisionHistoryOptions.class));
   }
 
   @Test
@@ -162,4 +180,176 @@ public class PerforceBlameCommandTest {
     verify(blameOutput).blameResult(inputFile, Arrays.asList(line, line));
   }
 
+  @Test
+  public void testBlameFromRemoteCache() throws Exception {
+    BlameOutput blameOutput = mock(BlameOutput.class);
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = new PerforceBlameCommand(mock(PerforceConfiguration.class));
+    RemoteBlameCache cache = mock(RemoteBlameCache.class);
+    command.setRemoteCache(cache);
+
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getDepotPathString()).thenReturn("//depot/foo/bar/src/Foo.java");
+    when(extendedFile.getHaveRev()).thenReturn(2);
+    when(server.getExtendedFiles((List<IFileSpec>)(List<?>) anyList(), any(GetExtendedFilesOptions.class))).thenReturn(Collections.singletonList(extendedFile));
+
+    InputFile inputFile = mock(InputFile.class);
+    Date date = new Date();
+    Map<Integer, BlameLine> linesByChangelist = new HashMap<Integer, BlameLine>();
+    linesByChangelist.put(3, new BlameLine().revision("3").date(date).author("jhenry"));
+    when(cache.get(anyString(), eq(inputFile))).thenReturn(new FileBlameData(new int[] {3}, linesByChangelist));
+
+    command.blame(inputFile, server, blameOutput);
+
+    verify(blameOutput).blameResult(inputFile, Collections.singletonList(new BlameLine().revision("3").date(date).author("jhenry")));
+    verify(server, never()).getFileAnnotations((List<IFileSpec>)(List<?>) anyList(), any(GetFileAnnotationsOptions.class));
+    verify(cache, never()).put(anyString(), any(InputFile.class), any(FileBlameData.class));
+  }
+
+  @Test
+  public void testBlameWithFailedChangelistIsNotCached() throws Exception {
+    BlameOutput blameOutput = mock(BlameOutput.class);
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = new PerforceBlameCommand(mock(PerforceConfiguration.class));
+    RemoteBlameCache cache = mock(RemoteBlameCache.class);
+    command.setRemoteCache(cache);
+
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getDepotPathString()).thenReturn("//depot/foo/bar/src/Foo.java");
+    when(extendedFile.getHaveRev()).thenReturn(2);
+    when(server.getExtendedFiles((List<IFileSpec>)(List<?>) anyList(), any(GetExtendedFilesOptions.class))).thenReturn(Collections.singletonList(extendedFile));
+    when(server.getRevisionHistory((List<IFileSpec>)(List<?>) anyList(), any(GetRevisionHistoryOptions.class)))
+      .thenReturn(new HashMap<IFileSpec, List<IFileRevisionData>>());
+    IFileAnnotation annotation = mock(IFileAnnotation.class);
+    when(annotation.getDepotPath()).thenReturn("//depot/foo/bar/src/Foo.java");
+    when(annotation.getLower()).thenReturn(4);
+    when(server.getFileAnnotations((List<IFileSpec>)(List<?>) anyList(), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(Collections.singletonList(annotation));
+    when(server.getChangelist(4)).thenThrow(new RequestException("Server is busy, try again later.",
+      MessageGenericCode.EV_COMM, MessageSeverityCode.E_FAILED));
+
+    InputFile inputFile = mock(InputFile.class);
+    command.blame(inputFile, server, blameOutput);
+
+    verify(blameOutput).blameResult(inputFile,
+      Collections.singletonList(new BlameLine().revision("4").date(new Date(0)).author("unknown")));
+    verify(cache, never()).put(anyString(), any(InputFile.class), any(FileBlameData.class));
+  }
+
+  @Test
+  public void testBlameFromSnapshot() throws Exception {
+    BlameOutput blameOutput = mock(BlameOutput.class);
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = new PerforceBlameCommand(mock(PerforceConfiguration.class));
+    BlameSnapshot snapshot = mock(BlameSnapshot.class);
+    command.setSnapshot(snapshot);
+
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getDepotPathString()).thenReturn("//depot/foo/bar/src/Foo.java");
+    when(extendedFile.getHaveRev()).thenReturn(2);
+    when(server.getExtendedFiles((List<IFileSpec>)(List<?>) anyList(), any(GetExtendedFilesOptions.class))).thenReturn(Collections.singletonList(extendedFile));
+
+    Date date = new Date();
+    Map<Integer, BlameLine> linesByChangelist = new HashMap<Integer, BlameLine>();
+    linesByChangelist.put(3, new BlameLine().revision("3").date(date).author("jhenry"));
+    when(snapshot.get("//depot/foo/bar/src/Foo.java", 2)).thenReturn(new FileBlameData(new int[] {3, 3}, linesByChangelist));
+
+    InputFile inputFile = mock(InputFile.class);
+    command.blame(inputFile, server, blameOutput);
+
+    BlameLine line = new BlameLine().revision("3").date(date).author("jhenry");
+    verify(blameOutput).blameResult(inputFile, Arrays.asList(line, line));
+    verify(server, never()).getFileAnnotations((List<IFileSpec>)(List<?>) anyList(), any(GetFileAnnotationsOptions.class));
+  }
+
+  @Test
+  public void testBlameWithResolvedAuthors() throws Exception {
+    BlameOutput blameOutput = mock(BlameOutput.class);
+    IOptionsServer server = mock(IOptionsServer.class);
+    PerforceBlameCommand command = new PerforceBlameCommand(mock(PerforceConfiguration.class));
+    command.setAuthorResolver(new AuthorResolver(Collections.<String, String>emptyMap(),
+      Collections.singletonMap("jhenry", "julien.henry@example.com")));
+
+    IFileAnnotation annotation = mock(IFileAnnotation.class);
+    when(annotation.getDepotPath()).thenReturn("foo/bar/src/Foo.java");
+    when(annotation.getLower()).thenReturn(3);
+    when(server.getFileAnnotations((List<IFileSpec>)(List<?>) anyList(), any(GetFileAnnotationsOptions.class))).thenReturn(Arrays.asList(annotation, annotation));
+
+    IChangelist changelist = mock(IChangelist.class);
+    Date date = new Date();
+    when(changelist.getDate()).thenReturn(date);
+    when(changelist.getUsername()).thenReturn("jhenry");
+    when(server.getChangelist(3)).thenReturn(changelist);
+
+    InputFile inputFile = mock(InputFile.class);
+    command.blame(inputFile, server, blameOutput);
+
+    BlameLine line = new BlameLine().revision("3").date(date).author("julien.henry@example.com");
+    verify(blameOutput).blameResult(inputFile, Arrays.asList(line, line));
+  }
+
+  @Test
+  public void testPrefetchHaveRevisionsSplitsBatchesOnLimitError() throws Exception {
+    IOptionsServer server = mock(IOptionsServer.class);
+    IExtendedFileSpec limitError = mock(IExtendedFileSpec.class);
+    when(limitError.getOpStatus()).thenReturn(FileSpecOpStatus.ERROR);
+    when(limitError.getStatusMessage()).thenReturn("Request too large (over 2); see 'p4 help maxresults'.");
+    IExtendedFileSpec extendedFile1 = extendedFile("Foo1.java");
+    IExtendedFileSpec extendedFile2 = extendedFile("Foo2.java");
+    IExtendedFileSpec extendedFile3 = extendedFile("Foo3.java");
+    when(server.getExtendedFiles((List<IFileSpec>)(List<?>) anyList(), any(GetExtendedFilesOptions.class)))
+      .thenReturn(Collections.singletonList(limitError), Collections.singletonList(extendedFile1),
+        Collections.singletonList(extendedFile2), Collections.singletonList(extendedFile3));
+
+    InputFile file1 = localFile("Foo1.java");
+    InputFile file2 = localFile("Foo2.java");
+    InputFile file3 = localFile("Foo3.java");
+    BatchSizer batchSizer = new BatchSizer(2);
+    Map<InputFile, IExtendedFileSpec> haveRevisions = PerforceBlameCommand.prefetchHaveRevisions(
+      Arrays.asList(file1, file2, file3), server, batchSizer, false);
+
+    assertThat(haveRevisions).containsEntry(file1, extendedFile1).containsEntry(file2, extendedFile2)
+      .containsEntry(file3, extendedFile3);
+    assertThat(batchSizer.size()).isEqualTo(1);
+    verify(server, times(4)).getExtendedFiles((List<IFileSpec>)(List<?>) anyList(), any(GetExtendedFilesOptions.class));
+  }
+
+  @Test
+  public void testPrefetchHaveRevisionsKeepsMatchingAnswers() throws Exception {
+    IOptionsServer server = mock(IOptionsServer.class);
+    IExtendedFileSpec deleted = mock(IExtendedFileSpec.class);
+    when(deleted.getOpStatus()).thenReturn(FileSpecOpStatus.ERROR);
+    when(deleted.getStatusMessage()).thenReturn("Foo2.java - no such file(s).");
+    IExtendedFileSpec extendedFile1 = extendedFile("Foo1.java");
+    IExtendedFileSpec extendedFile3 = extendedFile("Foo3.java");
+    IExtendedFileSpec unknown = extendedFile("Other.java");
+    when(server.getExtendedFiles((List<IFileSpec>)(List<?>) anyList(), any(GetExtendedFilesOptions.class)))
+      .thenReturn(Arrays.asList(extendedFile3, deleted, extendedFile1, unknown));
+
+    InputFile file1 = localFile("Foo1.java");
+    InputFile file2 = localFile("Foo2.java");
+    InputFile file3 = localFile("Foo3.java");
+    Map<InputFile, IExtendedFileSpec> haveRevisions = PerforceBlameCommand.prefetchHaveRevisions(
+      Arrays.asList(file1, file2, file3), server, new BatchSizer(10), false);
+
+    assertThat(haveRevisions).hasSize(2).containsEntry(file1, extendedFile1).containsEntry(file3, extendedFile3);
+  }
+
+  private InputFile localFile(String name) {
+    InputFile inputFile = mock(InputFile.class);
+    when(inputFile.uri()).thenReturn(new File("workspace", name).getAbsoluteFile().toURI());
+    when(inputFile.toString()).thenReturn(name);
+    return inputFile;
+  }
+
+  private IExtendedFileSpec extendedFile(String name) {
+    IExtendedFileSpec extendedFile = mock(IExtendedFileSpec.class);
+    when(extendedFile.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    when(extendedFile.getClientPathString()).thenReturn(new File("workspace", name).getAbsolutePath());
+    return extendedFile;
+  }
+
 }
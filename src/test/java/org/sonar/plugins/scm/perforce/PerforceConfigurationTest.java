@@ -21,6 +21,8 @@ package org.sonar.plugins.scm.perforce;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.Properties;
+
 import org.junit.Test;
 import org.sonar.api.config.PropertyDefinitions;
 import org.sonar.api.config.internal.ConfigurationBridge;
@@ -43,5 +45,40 @@ public class PerforceConfigurationTest {
 	assertThat(config.password()).isNull();
 	assertThat(config.useSsl()).isFalse();
 	assertThat(config.sockSoTimeout()).isEqualTo(RpcPropertyDefs.RPC_SOCKET_SO_TIMEOUT_DEFAULT);
+	assertThat(config.sockRecvBufSize()).isNull();
+	assertThat(config.sockSendBufSize()).isNull();
+	assertThat(config.tcpNoDelay()).isTrue();
+	assertThat(config.useKeepAlive()).isFalse();
+	assertThat(config.stateDir()).isNull();
+	assertThat(config.trace()).isNull();
+	assertThat(config.traceAnonymize()).isFalse();
+	assertThat(config.blameThreads()).isEqualTo(1);
+	assertThat(config.blameCacheUrl()).isNull();
+	assertThat(config.blameSnapshot()).isNull();
+	assertThat(config.blameIndex()).isNull();
+	assertThat(config.blameIncrementalCacheDir()).isNull();
+	assertThat(config.blameAuthorFormat()).isEqualTo("username");
+	assertThat(config.blameAuthorMapping()).isNull();
+	assertThat(config.blameAdaptiveConcurrency()).isFalse();
+	assertThat(config.blameDetectLocalChanges()).isFalse();
+	assertThat(config.blameAgentPort()).isNull();
+	assertThat(config.blameAgentTimeout()).isEqualTo(600000);
+	assertThat(config.blameResumable()).isFalse();
+	assertThat(config.blameDirectoryThreshold()).isEqualTo(0);
+	assertThat(config.blameAdaptiveAnnotate()).isFalse();
+    }
+
+    @Test
+    public void transportProperties() {
+	MapSettings settings = new MapSettings(new PropertyDefinitions(PerforceConfiguration.getProperties()));
+	settings.setProperty("sonar.perforce.sockRecvBufSize", "262144");
+	settings.setProperty("sonar.perforce.useKeepAlive", "true");
+	settings.setProperty("sonar.perforce.tcpNoDelay", "false");
+
+	Properties props = PerforceExecutor.rpcProperties(new PerforceConfiguration(new ConfigurationBridge(settings)));
+	assertThat(props.get(RpcPropertyDefs.RPC_SOCKET_RECV_BUF_SIZE_NICK)).isEqualTo("262144");
+	assertThat(props).doesNotContainKey(RpcPropertyDefs.RPC_SOCKET_SEND_BUF_SIZE_NICK);
+	assertThat(props.get(RpcPropertyDefs.RPC_SOCKET_USE_KEEPALIVE_NICK)).isEqualTo("true");
+	assertThat(props.get(RpcPropertyDefs.RPC_SOCKET_TCP_NO_DELAY_NICK)).isEqualTo("false");
     }
 }
@@ -0,0 +1,85 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class PerforceEventsTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void recordPhasesAndCommands() throws Exception {
+    File file = temp.newFile("blame.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("org.sonar.plugins.scm.perforce.BlamePhase").withoutThreshold();
+      recording.enable("org.sonar.plugins.scm.perforce.Command").withoutThreshold();
+      recording.start();
+
+      PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.ANNOTATE, "src/Foo.java");
+      PerforceEvents.beginCommand("annotate").end();
+      phase.end(42);
+      PerforceEvents.beginCommand("changes").end();
+
+      recording.stop();
+      recording.dump(file.toPath());
+    }
+
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+    assertThat(events).hasSize(3);
+    RecordedEvent annotate = find(events, "org.sonar.plugins.scm.perforce.Command", "annotate");
+    assertThat(annotate.getString("path")).isEqualTo("src/Foo.java");
+    RecordedEvent changes = find(events, "org.sonar.plugins.scm.perforce.Command", "changes");
+    assertThat(changes.getString("path")).isNull();
+    RecordedEvent phase = find(events, "org.sonar.plugins.scm.perforce.BlamePhase", null);
+    assertThat(phase.getString("phase")).isEqualTo("annotate");
+    assertThat(phase.getString("path")).isEqualTo("src/Foo.java");
+    assertThat(phase.getInt("lines")).isEqualTo(42);
+  }
+
+  @Test
+  public void noEventWhenNotRecording() {
+    PerforceEvents.Phase phase = PerforceEvents.begin(PerforceEvents.OUTPUT, "src/Foo.java");
+    PerforceEvents.beginCommand("annotate").end();
+    phase.end(1);
+  }
+
+  private static RecordedEvent find(List<RecordedEvent> events, String type, String command) {
+    for (RecordedEvent event : events) {
+      if (event.getEventType().getName().equals(type)
+        && (command == null || command.equals(event.getString("command")))) {
+        return event;
+      }
+    }
+    throw new AssertionError("No event " + type + " " + command);
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Implementation of the blame cache protocol used by {@link RemoteBlameCache}, storing one file per entry in a
+ * directory.
+ */
+class RemoteBlameCacheServer implements HttpHandler {
+
+  private static final Pattern KEY = Pattern.compile("[0-9a-f]{40}");
+
+  private final File directory;
+  private HttpServer server;
+
+  RemoteBlameCacheServer(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @param port port to listen to, 0 for any free port
+   * @return the port the server listens to
+   */
+  int start(int port) throws IOException {
+    Files.createDirectories(directory.toPath());
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/", this);
+    server.start();
+    return server.getAddress().getPort();
+  }
+
+  void stop() {
+    server.stop(0);
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      String key = exchange.getRequestURI().getPath().substring(exchange.getHttpContext().getPath().length());
+      if (!KEY.matcher(key).matches()) {
+        exchange.sendResponseHeaders(400, -1);
+        return;
+      }
+      Path entry = directory.toPath().resolve(key);
+      String method = exchange.getRequestMethod();
+      if ("GET".equals(method)) {
+        get(exchange, entry);
+      } else if ("PUT".equals(method)) {
+        put(exchange, entry);
+      } else {
+        exchange.sendResponseHeaders(405, -1);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static void get(HttpExchange exchange, Path entry) throws IOException {
+    if (!Files.isRegularFile(entry)) {
+      exchange.sendResponseHeaders(404, -1);
+      return;
+    }
+    byte[] content = Files.readAllBytes(entry);
+    exchange.sendResponseHeaders(200, content.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(content);
+    }
+  }
+
+  private void put(HttpExchange exchange, Path entry) throws IOException {
+    // Write to a temporary file first so that concurrent readers never see a partial entry
+    Path tmp = Files.createTempFile(directory.toPath(), "upload", ".tmp");
+    try (InputStream in = exchange.getRequestBody()) {
+      Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    exchange.sendResponseHeaders(204, -1);
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+
+public class RemoteBlameCacheTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File directory;
+  private RemoteBlameCacheServer server;
+  private RemoteBlameCache cache;
+
+  @Before
+  public void startServer() throws Exception {
+    directory = temp.newFolder();
+    server = new RemoteBlameCacheServer(directory);
+    int port = server.start(0);
+    cache = new RemoteBlameCache("http://localhost:" + port + "/", 5000);
+  }
+
+  @After
+  public void stopServer() {
+    cache.close();
+    server.stop();
+  }
+
+  @Test
+  public void keyDependsOnServerPathRevisionAndOptions() {
+    String key = RemoteBlameCache.key("1666", "//depot/Foo.java", 3, "c=true");
+    assertThat(key).matches("[0-9a-f]{40}");
+    assertThat(RemoteBlameCache.key("1666", "//depot/Foo.java", 3, "c=true")).isEqualTo(key);
+    assertThat(RemoteBlameCache.key("1666", "//depot/Foo.java", 4, "c=true")).isNotEqualTo(key);
+    assertThat(RemoteBlameCache.key("1666", "//depot/Bar.java", 3, "c=true")).isNotEqualTo(key);
+    assertThat(RemoteBlameCache.key("1666", "//depot/Foo.java", 3, "c=false")).isNotEqualTo(key);
+    assertThat(RemoteBlameCache.key("other:1666", "//depot/Foo.java", 3, "c=true")).isNotEqualTo(key);
+  }
+
+  @Test
+  public void storeAndRetrieve() {
+    InputFile inputFile = mock(InputFile.class);
+    Map<Integer, BlameLine> lines = new HashMap<Integer, BlameLine>();
+    lines.put(3, new BlameLine().revision("3").date(new Date(1000)).author("jhenry"));
+    String key = RemoteBlameCache.key("1666", "//depot/Foo.java", 3, "c=true");
+
+    assertThat(cache.get(key, inputFile)).isNull();
+
+    cache.put(key, inputFile, new FileBlameData(new int[] {3, 3, 5}, lines));
+    FileBlameData data = cache.get(key, inputFile);
+
+    assertThat(data.changelistIds).containsExactly(3, 3, 5);
+    assertThat(data.linesByChangelistId).containsOnlyKeys(3);
+    assertThat(data.linesByChangelistId.get(3)).isEqualTo(lines.get(3));
+  }
+
+  @Test
+  public void corruptEntryIsACacheMiss() throws Exception {
+    String key = RemoteBlameCache.key("1666", "//depot/Foo.java", 3, "c=true");
+    // Dictionary of 2^28 changelists
+    Files.write(directory.toPath().resolve(key), new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01});
+
+    assertThat(cache.get(key, mock(InputFile.class))).isNull();
+  }
+
+  @Test
+  public void unreachableServerIsACacheMiss() {
+    RemoteBlameCache unreachable = new RemoteBlameCache("http://localhost:1", 1000);
+    try {
+      assertThat(unreachable.get(RemoteBlameCache.key("1666", "//depot/Foo.java", 1, ""), mock(InputFile.class))).isNull();
+    } finally {
+      unreachable.close();
+    }
+  }
+}
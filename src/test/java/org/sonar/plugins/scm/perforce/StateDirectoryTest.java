@@ -0,0 +1,61 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.internal.ConfigurationBridge;
+import org.sonar.api.config.internal.MapSettings;
+
+public class StateDirectoryTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void oneDirectoryPerWorkspaceAndProject() throws Exception {
+    MapSettings settings = new MapSettings();
+    settings.setProperty("sonar.perforce.stateDir", temp.getRoot().getAbsolutePath());
+    settings.setProperty("sonar.perforce.clientName", "my/client");
+    PerforceConfiguration config = new PerforceConfiguration(new ConfigurationBridge(settings));
+
+    File dir = StateDirectory.of(config, new File("project"));
+
+    assertThat(dir.getParentFile()).isEqualTo(temp.getRoot());
+    assertThat(dir.getName()).startsWith("my_client-");
+    assertThat(StateDirectory.of(config, new File("project"))).isEqualTo(dir);
+    assertThat(StateDirectory.of(config, new File("other"))).isNotEqualTo(dir);
+  }
+
+  @Test
+  public void defaultsToUserHome() {
+    PerforceConfiguration config = new PerforceConfiguration(new ConfigurationBridge(new MapSettings()));
+
+    File dir = StateDirectory.of(config, new File("project"));
+
+    assertThat(dir.getParentFile()).isEqualTo(new File(System.getProperty("user.home"), ".sonar/perforce"));
+    assertThat(dir.getName()).startsWith("noclient-");
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * SonarQube :: Plugins :: SCM :: Perforce
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.perforce;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.fs.InputFile;
+
+import com.perforce.p4java.core.IChangelist;
+import com.perforce.p4java.core.IUserGroup;
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileAnnotation;
+import com.perforce.p4java.core.file.IFileRevisionData;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetFileAnnotationsOptions;
+import com.perforce.p4java.option.server.GetFileDiffsOptions;
+import com.perforce.p4java.option.server.GetRevisionHistoryOptions;
+import com.perforce.p4java.option.server.GetUserGroupsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+
+public class TraceRecorderTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private final IOptionsServer server = mock(IOptionsServer.class);
+  private final InputFile inputFile = mock(InputFile.class);
+  private File trace;
+
+  @Before
+  public void prepare() throws Exception {
+    trace = temp.newFile("blame.trace");
+    when(inputFile.filename()).thenReturn("Foo.java");
+    when(inputFile.toString()).thenReturn("src/Foo.java");
+
+    Map<IFileSpec, List<IFileRevisionData>> history = new HashMap<IFileSpec, List<IFileRevisionData>>();
+    IFileSpec spec = mock(IFileSpec.class);
+    when(spec.getOpStatus()).thenReturn(FileSpecOpStatus.VALID);
+    IFileRevisionData revision = mock(IFileRevisionData.class);
+    when(revision.getChangelistId()).thenReturn(3);
+    when(revision.getAction()).thenReturn(FileAction.EDIT);
+    when(revision.getDate()).thenReturn(new Date(1000));
+    when(revision.getUserName()).thenReturn("jhenry");
+    history.put(spec, Collections.singletonList(revision));
+    when(server.getRevisionHistory(anyList(), any(GetRevisionHistoryOptions.class))).thenReturn(history);
+
+    IFileAnnotation line1 = annotation(3);
+    IFileAnnotation line2 = annotation(4);
+    when(server.getFileAnnotations(anyList(), any(GetFileAnnotationsOptions.class)))
+      .thenReturn(Arrays.asList(line1, line2));
+    IChangelist changelist = mock(IChangelist.class);
+    when(changelist.getId()).thenReturn(4);
+    when(changelist.getDate()).thenReturn(new Date(2000));
+    when(changelist.getUsername()).thenReturn("bgates");
+    when(server.getChangelist(4)).thenReturn(changelist);
+  }
+
+  @Test
+  public void replayRecordedBlame() throws Exception {
+    FileBlameData recorded = record(false);
+
+    IOptionsServer replay = TraceReplayServer.load(trace, 0);
+    FileBlameData replayed = new PerforceBlameCommand(mock(PerforceConfiguration.class)).fetch(inputFile, replay);
+
+    assertThat(replayed.changelistIds).containsExactly(recorded.changelistIds);
+    assertThat(replayed.linesByChangelistId.get(3).author()).isEqualTo("jhenry");
+    assertThat(replayed.linesByChangelistId.get(4).author()).isEqualTo("bgates");
+    assertThat(replayed.linesByChangelistId.get(4).date()).isEqualTo(new Date(2000));
+    assertThat(replay.isConnected()).isTrue();
+  }
+
+  @Test
+  public void anonymizeUsers() throws Exception {
+    record(true);
+
+    IOptionsServer replay = TraceReplayServer.load(trace, 0);
+    FileBlameData replayed = new PerforceBlameCommand(mock(PerforceConfiguration.class)).fetch(inputFile, replay);
+
+    assertThat(replayed.linesByChangelistId.get(3).author()).isEqualTo("user-" + TraceCodec.hash("jhenry"));
+    assertThat(replayed.linesByChangelistId.get(4).author()).isEqualTo("user-" + TraceCodec.hash("bgates"))
+      .isNotEqualTo(replayed.linesByChangelistId.get(3).author());
+  }
+
+  @Test
+  public void anonymizeUserOfTheConnection() throws Exception {
+    when(server.getUserName()).thenReturn("jhenry");
+    IUserGroup group = mock(IUserGroup.class);
+    when(group.getName()).thenReturn("developers");
+    when(server.getUserGroups(eq("jhenry"), any(GetUserGroupsOptions.class))).thenReturn(Collections.singletonList(group));
+    try (TraceRecorder recorder = TraceRecorder.open(trace, true)) {
+      IOptionsServer recorded = recorder.wrap(server);
+      recorded.getUserGroups(recorded.getUserName(), new GetUserGroupsOptions());
+    }
+
+    assertThat(new String(gunzip(trace), StandardCharsets.UTF_8)).doesNotContain("jhenry");
+    IOptionsServer replay = TraceReplayServer.load(trace, 0);
+    String userName = replay.getUserName();
+    assertThat(userName).isEqualTo("user-" + TraceCodec.hash("jhenry"));
+    assertThat(replay.getUserGroups(userName, new GetUserGroupsOptions()).get(0).getName()).isEqualTo("developers");
+  }
+
+  @Test
+  public void recordHugeKeys() throws Exception {
+    List<IFileSpec> fileSpecs = new ArrayList<IFileSpec>();
+    for (int i = 0; i < 5000; i++) {
+      fileSpecs.add(new FileSpec("//depot/some/long/directory/name/File" + i + ".java"));
+    }
+    when(server.getRevisionHistory(eq(fileSpecs), any(GetRevisionHistoryOptions.class)))
+      .thenReturn(Collections.<IFileSpec, List<IFileRevisionData>>emptyMap());
+    try (TraceRecorder recorder = TraceRecorder.open(trace, false)) {
+      recorder.wrap(server).getRevisionHistory(fileSpecs, new GetRevisionHistoryOptions());
+    }
+    assertThat(TraceRecorder.key("getRevisionHistory", new Object[] {fileSpecs}).length()).isGreaterThan(65535);
+
+    assertThat(TraceReplayServer.load(trace, 0).getRevisionHistory(fileSpecs, new GetRevisionHistoryOptions())).isEmpty();
+  }
+
+  @Test
+  public void recordDiffsWithoutLineContents() throws Exception {
+    String diff = "==== //depot/Foo.java#1 (text) - //depot/Foo.java#2 (text) ==== content\n"
+      + "d2 1\n"
+      + "a3 2\n"
+      + "String password = \"hunter2\";\n"
+      // Added line looking like a command
+      + "a1 1\n";
+    FileSpec oldRevision = new FileSpec("//depot/Foo.java#1");
+    FileSpec newRevision = new FileSpec("//depot/Foo.java#2");
+    when(server.getFileDiffsStream(eq(oldRevision), eq(newRevision), eq(null), any(GetFileDiffsOptions.class)))
+      .thenReturn(new ByteArrayInputStream(diff.getBytes(StandardCharsets.ISO_8859_1)));
+    byte[] read;
+    try (TraceRecorder recorder = TraceRecorder.open(trace, false)) {
+      read = readFully(recorder.wrap(server).getFileDiffsStream(oldRevision, newRevision, null,
+        new GetFileDiffsOptions()));
+    }
+    assertThat(new String(read, StandardCharsets.ISO_8859_1)).isEqualTo(diff);
+
+    assertThat(new String(gunzip(trace), StandardCharsets.ISO_8859_1)).doesNotContain("hunter2").doesNotContain("a1 1");
+    byte[] replayed = readFully(TraceReplayServer.load(trace, 0).getFileDiffsStream(oldRevision, newRevision, null,
+      new GetFileDiffsOptions()));
+    assertThat(new String(replayed, StandardCharsets.ISO_8859_1))
+      .isEqualTo("==== //depot/Foo.java#1 (text) - //depot/Foo.java#2 (text) ==== content\nd2 1\na3 2\n\n\n");
+    int[] oldLines = {1, 1, 1};
+    assertThat(IncrementalAnnotator.applyRcsDiff(oldLines, new StringReader(new String(replayed,
+      StandardCharsets.ISO_8859_1)), 2)).containsExactly(IncrementalAnnotator.applyRcsDiff(oldLines,
+        new StringReader(diff), 2));
+  }
+
+  @Test
+  public void rejectInvalidSizes() throws Exception {
+    // List, map and byte array of a negative or huge size
+    for (int tag : new int[] {7, 8, 9}) {
+      for (int size : new int[] {-1, Integer.MAX_VALUE}) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(tag);
+        out.writeInt(size);
+        try {
+          TraceCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+          fail("Expected exception");
+        } catch (IOException e) {
+          assertThat(e.getMessage()).contains("Invalid size");
+        }
+      }
+    }
+  }
+
+  @Test
+  public void replayOnlyPerforceExceptions() throws Exception {
+    when(server.getChangelist(5)).thenThrow(new IllegalStateException("Broken"));
+    try (TraceRecorder recorder = TraceRecorder.open(trace, false)) {
+      recorder.wrap(server).getChangelist(5);
+      fail("Expected exception");
+    } catch (IllegalStateException e) {
+      // Recorded
+    }
+
+    try {
+      TraceReplayServer.load(trace, 0).getChangelist(5);
+      fail("Expected exception");
+    } catch (RequestException e) {
+      assertThat(e.getMessage()).isEqualTo("java.lang.IllegalStateException: Broken");
+    }
+  }
+
+  @Test
+  public void readOnlyPerforceEnums() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    new TraceCodec(false).write(out, null, FileAction.EDIT);
+    assertThat(TraceCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))))
+      .isEqualTo(FileAction.EDIT);
+
+    bytes.reset();
+    out.writeByte(6);
+    out.writeUTF("java.util.concurrent.TimeUnit");
+    out.writeUTF("SECONDS");
+    try {
+      TraceCodec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+      fail("Expected exception");
+    } catch (IOException e) {
+      assertThat(e.getMessage()).contains("Unknown enum");
+    }
+  }
+
+  @Test
+  public void replayFailures() throws Exception {
+    when(server.getChangelist(5)).thenThrow(new RequestException("Perforce password (P4PASSWD) invalid or unset."));
+    try (TraceRecorder recorder = TraceRecorder.open(trace, false)) {
+      recorder.wrap(server).getChangelist(5);
+      fail("Expected exception");
+    } catch (RequestException e) {
+      // Recorded
+    }
+
+    IOptionsServer replay = TraceReplayServer.load(trace, 0);
+    try {
+      replay.getChangelist(5);
+      fail("Expected exception");
+    } catch (RequestException e) {
+      assertThat(e.getMessage()).contains("P4PASSWD");
+    }
+    try {
+      replay.getChangelist(6);
+      fail("Expected exception");
+    } catch (RequestException e) {
+      assertThat(e.getMessage()).contains("Not recorded");
+    }
+  }
+
+  @Test
+  public void keyOfRequest() {
+    FileSpec fileSpec = new FileSpec("Foo.java");
+    fileSpec.setEndRevision(IFileSpec.HAVE_REVISION);
+    assertThat(TraceRecorder.key("getChangelist", new Object[] {4})).isEqualTo("getChangelist 4");
+    assertThat(TraceRecorder.key("getFileAnnotations",
+      new Object[] {Collections.singletonList(fileSpec), PerforceBlameCommand.getFileAnnotationOptions()}))
+        .isEqualTo("getFileAnnotations [Foo.java#have,] [-c, -i, -db]");
+  }
+
+  private FileBlameData record(boolean anonymize) throws Exception {
+    try (TraceRecorder recorder = TraceRecorder.open(trace, anonymize)) {
+      return new PerforceBlameCommand(mock(PerforceConfiguration.class)).fetch(inputFile, recorder.wrap(server));
+    }
+  }
+
+  private static byte[] gunzip(File file) throws IOException {
+    return readFully(new GZIPInputStream(new FileInputStream(file)));
+  }
+
+  private static byte[] readFully(InputStream stream) throws IOException {
+    try (InputStream in = stream) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  private static IFileAnnotation annotation(int changelistId) {
+    IFileAnnotation annotation = mock(IFileAnnotation.class);
+    when(annotation.getDepotPath()).thenReturn("//depot/Foo.java");
+    when(annotation.getLower()).thenReturn(changelistId);
+    return annotation;
+  }
+}